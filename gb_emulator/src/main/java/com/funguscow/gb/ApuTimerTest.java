@@ -0,0 +1,194 @@
+package com.funguscow.gb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the closed form APU frequency timers and noise LFSR against stepping them one cycle at a time,
+ * the way SoundBoard.incrementTimer used to
+ */
+public class ApuTimerTest {
+
+    private final Random random;
+    private int failures;
+
+    public ApuTimerTest(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * The old per-cycle frequency timer
+     * @param counter Current counter value
+     * @param period Value reloaded
+     * @param rate Amount counted down each cycle
+     * @param cycles Number of cycles to run
+     * @return Number of reloads in the upper 32 bits, new counter value in the lower 32 bits
+     */
+    private static long stepTimer(int counter, int period, int rate, int cycles) {
+        long reloads = 0;
+        for (int i = 0; i < cycles; i++) {
+            counter -= rate;
+            if (counter <= 0) {
+                counter = period;
+                reloads++;
+            }
+        }
+        return (reloads << 32) | (counter & 0xffffffffL);
+    }
+
+    /**
+     * The old per-cycle LFSR, stepped once per reload of the noise timer
+     * @param lfsr LFSR value
+     * @param steps Number of steps
+     * @param lowBitWidth True in 7 bit mode
+     * @return New LFSR value
+     */
+    private static int stepLfsr(int lfsr, int steps, boolean lowBitWidth) {
+        for (int i = 0; i < steps; i++) {
+            int xor = (lfsr & 1) ^ ((lfsr >> 1) & 1);
+            lfsr = (lfsr >> 1) | (xor << 14);
+            if (lowBitWidth) {
+                lfsr &= ~0x40;
+                lfsr |= xor << 6;
+            }
+        }
+        return lfsr;
+    }
+
+    /**
+     *
+     * @return A cycle count, spread over several orders of magnitude
+     */
+    private int randomCycles() {
+        return random.nextInt(1 << (1 + random.nextInt(17)));
+    }
+
+    /**
+     * One frequency timer, with the periods and rates of the square, wave and noise channels
+     * @return True if the reload count and counter match
+     */
+    public boolean testTimer() {
+        int period, rate;
+        switch (random.nextInt(3)) {
+            case 0: // Channels 1 and 2
+                period = 2048 - random.nextInt(2048);
+                rate = 1;
+                break;
+            case 1: // Channel 3
+                period = 2048 - random.nextInt(2048);
+                rate = 2;
+                break;
+            default: // Channel 4
+                int divisor = random.nextInt(8);
+                period = (divisor == 0 ? 8 : (divisor << 4)) << random.nextInt(14);
+                rate = 1;
+                break;
+        }
+        // Include counters already at or below 0, and above the period after the divisor was rewritten
+        int counter = random.nextInt(period + 2052) - 3;
+        int cycles = randomCycles();
+        long expected = stepTimer(counter, period, rate, cycles);
+        long actual = SoundBoard.advanceTimer(counter, period, rate, cycles);
+        if (actual != expected) {
+            System.err.printf("Timer counter %d period %d rate %d cycles %d: expected %d reloads to %d, got %d reloads to %d\n",
+                    counter, period, rate, cycles, expected >> 32, (int) expected, actual >> 32, (int) actual);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The noise LFSR in both widths, including step counts past the 7 bit shortcut
+     * @return True if the LFSR values match
+     */
+    public boolean testLfsr() {
+        boolean lowBitWidth = random.nextBoolean();
+        int lfsr = random.nextInt(4) == 0 ? 0x7fff : random.nextInt(0x8000);
+        int steps = randomCycles();
+        int expected = stepLfsr(lfsr, steps, lowBitWidth);
+        int actual = SoundBoard.advanceLfsr(lfsr, steps, lowBitWidth);
+        if (actual != expected) {
+            System.err.printf("LFSR 0x%04x steps %d%s: expected 0x%04x, got 0x%04x\n",
+                    lfsr, steps, lowBitWidth ? " 7 bit" : "", expected, actual);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A whole APU from random register writes, stepped in long spans across frame sequencer events
+     * and one cycle at a time, which also covers sweep changing channel 1's period part way
+     * @return True if the saved states match
+     */
+    public boolean testBoard() {
+        SoundBoard spans = new SoundBoard();
+        SoundBoard cycles = new SoundBoard();
+        for (int i = 0; i < 64; i++) {
+            int address = 0xff10 + random.nextInt(0x2f);
+            int value = random.nextInt(0x100);
+            spans.write(address, value);
+            cycles.write(address, value);
+        }
+        int length = randomCycles() + random.nextInt(0x4000);
+        spans.step(length, 1);
+        for (int i = 0; i < length; i++) {
+            cycles.step(1, 1);
+        }
+        byte[] expected = saved(cycles);
+        byte[] actual = saved(spans);
+        if (!Arrays.equals(actual, expected)) {
+            System.err.printf("APU state differs after %d cycles in one span\n", length);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param soundBoard APU to save
+     * @return Its saved state
+     */
+    private static byte[] saved(SoundBoard soundBoard) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bos)) {
+            soundBoard.save(dos);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Run every check some number of times
+     * @param trials Number of timer and LFSR checks, a tenth as many whole APUs are checked
+     * @return Number of failed checks
+     */
+    public int run(int trials) {
+        for (int i = 0; i < trials; i++) {
+            if (!testTimer()) {
+                failures++;
+            }
+            if (!testLfsr()) {
+                failures++;
+            }
+            if (i % 10 == 0 && !testBoard()) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int trials = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int failures = new ApuTimerTest(seed).run(trials);
+        System.out.printf("Seed %d: %d failures in %d trials\n", seed, failures, trials);
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.funguscow.gb;
+
+import java.util.Arrays;
+
+/**
+ * Band limited synthesis of one output channel from the steps in its amplitude
+ * Each step is spread over a few samples by a windowed sinc kernel, picked by where between two
+ * samples the step happened, and the samples are recovered by integrating the deltas.
+ * This avoids the aliasing of point sampling, and only costs work per step rather than per sample
+ */
+final class BlipBuffer {
+
+    static final int PHASES = 32; // Sub-sample positions a step can be placed at
+    static final int WIDTH = 16; // Samples each step is spread over, so output lags by WIDTH / 2
+    private static final int KERNEL_BITS = 15;
+    private static final double CUTOFF = 0.9; // Fraction of the Nyquist frequency passed
+
+    // Kernel for each phase, with taps summing to exactly 1 << KERNEL_BITS so levels do not drift
+    private static final int[][] KERNELS = new int[PHASES][WIDTH];
+
+    static {
+        for (int phase = 0; phase < PHASES; phase++) {
+            double[] taps = new double[WIDTH];
+            double total = 0;
+            for (int i = 0; i < WIDTH; i++) {
+                double x = i + 1 - (double) phase / PHASES - WIDTH / 2.0; // Distance of sample i after the step
+                double sinc = x == 0 ? 1 : Math.sin(Math.PI * CUTOFF * x) / (Math.PI * CUTOFF * x);
+                double w = 2 * Math.PI * (x + WIDTH / 2.0) / WIDTH; // Blackman window over the kernel
+                taps[i] = sinc * (0.42 - 0.5 * Math.cos(w) + 0.08 * Math.cos(2 * w));
+                total += taps[i];
+            }
+            int sum = 0, largest = 0;
+            for (int i = 0; i < WIDTH; i++) {
+                KERNELS[phase][i] = (int) Math.round(taps[i] / total * (1 << KERNEL_BITS));
+                sum += KERNELS[phase][i];
+                if (KERNELS[phase][i] > KERNELS[phase][largest]) {
+                    largest = i;
+                }
+            }
+            KERNELS[phase][largest] += (1 << KERNEL_BITS) - sum;
+        }
+    }
+
+    private final int size;
+    private final int[] deltas; // Accumulated kernels, WIDTH past the end for steps near it
+    private int sum; // Integral of every delta read out so far
+    private int level; // Amplitude after the last step added
+
+    /**
+     *
+     * @param size Number of samples read out at a time
+     */
+    BlipBuffer(int size) {
+        this.size = size;
+        deltas = new int[size + WIDTH];
+    }
+
+    /**
+     * Change the amplitude from some point on
+     * @param sample Index of the sample the step happens during, less than size
+     * @param phase How far through that sample, out of PHASES
+     * @param amplitude New amplitude
+     */
+    void setLevel(int sample, int phase, int amplitude) {
+        int delta = amplitude - level;
+        if (delta == 0) {
+            return;
+        }
+        level = amplitude;
+        int[] kernel = KERNELS[phase];
+        for (int i = 0; i < WIDTH; i++) {
+            deltas[sample + i] += kernel[i] * delta;
+        }
+    }
+
+    /**
+     * Read out the first size samples and move on to the next ones
+     * @param out Destination for unsigned 8-bit samples, may be null to discard them
+     */
+    void read(byte[] out) {
+        for (int i = 0; i < size; i++) {
+            sum += deltas[i];
+            if (out != null) {
+                out[i] = (byte) Math.min(0xff, Math.max(0, (sum + (1 << (KERNEL_BITS - 1))) >> KERNEL_BITS));
+            }
+        }
+        System.arraycopy(deltas, size, deltas, 0, WIDTH);
+        Arrays.fill(deltas, WIDTH, deltas.length, 0);
+    }
+
+    /**
+     * Drop everything, going back to silence
+     */
+    void clear() {
+        Arrays.fill(deltas, 0);
+        sum = level = 0;
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.funguscow.gb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Caches basic blocks of already decoded instructions so that running code does not have to
+ * fetch and decode every opcode and operand through the MMU.
+ * Blocks are keyed by where the code physically lives (ROM bank and offset, WRAM bank and offset, or HRAM),
+ * so switching banks selects different blocks rather than discarding them
+ */
+class BlockCache {
+
+    // Upper bound on instructions decoded into one block
+    private static final int MAX_BLOCK_LENGTH = 64;
+
+    /**
+     * A straight run of instructions ending at a jump, call, return, or halt
+     */
+    private static class Block {
+        final int[] addresses = new int[MAX_BLOCK_LENGTH];
+        final int[] nextPcs = new int[MAX_BLOCK_LENGTH];
+        final CPU.Instruction[] instructions = new CPU.Instruction[MAX_BLOCK_LENGTH];
+        int length;
+        boolean valid = true;
+    }
+
+    private final CPU cpu;
+    private final MMU mmu;
+
+    private final Block[][] romBlocks;
+    private final Block[] wramBlocks;
+    private final Block[] hramBlocks = new Block[0x80];
+    // Set for each byte of RAM that has been decoded into a cached block
+    private final boolean[] wramCode;
+    private final boolean[] hramCode = new boolean[0x80];
+    private final List<Block> ramBlocks = new ArrayList<>();
+
+    private Block current;
+    private int index;
+    private int mapVersion;
+
+    /**
+     *
+     * @param cpu CPU whose instruction tables to use
+     * @param mmu MMU to decode code from
+     */
+    BlockCache(CPU cpu, MMU mmu) {
+        this.cpu = cpu;
+        this.mmu = mmu;
+        romBlocks = new Block[Math.max(1, mmu.rom.length >> 14)][];
+        wramBlocks = new Block[mmu.internalRam.length];
+        wramCode = new boolean[mmu.internalRam.length];
+    }
+
+    /**
+     * Execute the instruction at the CPU's PC from the cache
+     * @return Number of m-cycles taken, or -1 if the code at PC cannot be cached
+     */
+    int step() {
+        int pc = cpu.pc;
+        Block block = current;
+        if (block == null || !block.valid || mapVersion != mmu.mapVersion
+                || index >= block.length || block.addresses[index] != pc) {
+            block = find(pc);
+            if (block == null) {
+                return -1;
+            }
+        }
+        cpu.pc = block.nextPcs[index];
+        return block.instructions[index++].execute();
+    }
+
+    /**
+     * Called on every write to work RAM
+     * @param offset Index into internal RAM that was written
+     */
+    void onWramWrite(int offset) {
+        if (wramCode[offset]) {
+            flushRam();
+        }
+    }
+
+    /**
+     * Called on every write to high RAM
+     * @param offset Index into zero page that was written
+     */
+    void onHramWrite(int offset) {
+        if (hramCode[offset]) {
+            flushRam();
+        }
+    }
+
+    /**
+     * Drop every cached block, e.g. after memory was changed behind the MMU's back
+     */
+    void flush() {
+        Arrays.fill(romBlocks, null);
+        flushRam();
+        current = null;
+    }
+
+    /**
+     * Drop all blocks decoded from RAM
+     */
+    private void flushRam() {
+        for (Block block : ramBlocks) {
+            block.valid = false;
+        }
+        ramBlocks.clear();
+        Arrays.fill(wramBlocks, null);
+        Arrays.fill(wramCode, false);
+        Arrays.fill(hramBlocks, null);
+        Arrays.fill(hramCode, false);
+    }
+
+    /**
+     * Find or decode the block starting at an address
+     * @param pc Address of the first instruction
+     * @return The block, or null if the address is not cacheable
+     */
+    private Block find(int pc) {
+        mapVersion = mmu.mapVersion;
+        current = null;
+        index = 0;
+        Block[] slots;
+        boolean[] code = null;
+        int offset, limit;
+        if (pc < 0x8000) {
+            offset = mmu.romOffset(pc);
+            int bank = offset >> 14;
+            if (offset < 0 || bank >= romBlocks.length) {
+                return null;
+            }
+            if (romBlocks[bank] == null) {
+                romBlocks[bank] = new Block[0x4000];
+            }
+            slots = romBlocks[bank];
+            offset &= 0x3fff;
+            limit = (pc | 0x3fff) + 1;
+        } else if (pc >= 0xc000 && pc < 0xe000) {
+            offset = mmu.wramOffset(pc);
+            slots = wramBlocks;
+            code = wramCode;
+            limit = (pc | 0xfff) + 1;
+        } else if (pc >= 0xff80 && pc < 0xffff) {
+            offset = pc & 0x7f;
+            slots = hramBlocks;
+            code = hramCode;
+            limit = 0xffff;
+        } else {
+            return null;
+        }
+        Block block = slots[offset];
+        if (block == null) {
+            block = decode(pc, limit);
+            if (block == null) {
+                return null;
+            }
+            slots[offset] = block;
+            if (code != null) {
+                int end = block.nextPcs[block.length - 1] - pc;
+                Arrays.fill(code, offset, offset + end, true);
+                ramBlocks.add(block);
+            }
+        }
+        current = block;
+        return block;
+    }
+
+    /**
+     * Decode a new block
+     * @param pc Address of the first instruction
+     * @param limit First address past the contiguous region containing pc
+     * @return The block, or null if not even one instruction fits before limit
+     */
+    private Block decode(int pc, int limit) {
+        Block block = new Block();
+        int address = pc;
+        while (block.length < MAX_BLOCK_LENGTH) {
+            int opcode = mmu.read8(address);
+            int size = cpu.instructionSize(opcode);
+            if (address + size > limit) {
+                break;
+            }
+            int operand = 0;
+            if (size == 2) {
+                operand = mmu.read8(address + 1);
+            } else if (size == 3) {
+                operand = mmu.read8(address + 1) | (mmu.read8(address + 2) << 8);
+            }
+            block.addresses[block.length] = address;
+            block.nextPcs[block.length] = address + size;
+            block.instructions[block.length] = cpu.decode(opcode, operand);
+            block.length++;
+            address += size;
+            if (CPU.endsBlock(opcode)) {
+                break;
+            }
+        }
+        return block.length == 0 ? null : block;
+    }
+}
@@ -29,6 +29,37 @@ public class CPU {
 
     MMU mmu;
 
+    /**
+     * A single instruction with its operands already decoded
+     */
+    interface Instruction {
+        /**
+         * Execute the instruction
+         * @return Number of m-cycles taken
+         */
+        int execute();
+    }
+
+    /**
+     * An instruction taking an immediate operand
+     */
+    interface Operation {
+        /**
+         * Execute the instruction
+         * @param operand Immediate byte or little-endian word following the opcode
+         * @return Number of m-cycles taken
+         */
+        int execute(int operand);
+    }
+
+    // Dispatch tables indexed by opcode, filled in once by buildTables
+    private final Instruction[] ops = new Instruction[256];
+    private final Instruction[] cbOps = new Instruction[256];
+    private final Operation[] immOps = new Operation[256];
+    private final int[] operandBytes = new int[256];
+    private boolean tableDispatch = true;
+    private BlockCache blockCache;
+
     /**
      *
      * @param mode Machine mode to use (e.g. gameboy, color, etc.)
@@ -52,6 +83,34 @@ public class CPU {
         pc = bios ? 0x00 : 0x100; // Start with the opcode at 0x100, as this is what's loaded after the BIOS
         this.debugger = debugger;
         this.logger = logger;
+        buildTables();
+    }
+
+    /**
+     * Selects how opcodes are dispatched, mostly useful for benchmarking
+     * @param tableDispatch true to use the prebuilt dispatch tables, false to use the opcode switch
+     */
+    public void setTableDispatch(boolean tableDispatch) {
+        this.tableDispatch = tableDispatch;
+    }
+
+    /**
+     * Enable or disable running code out of a cache of pre-decoded basic blocks.
+     * The cache is bypassed while a debugger or logger is attached
+     * @param enabled true to use the block cache
+     */
+    public void setBlockCache(boolean enabled) {
+        blockCache = enabled ? new BlockCache(this, mmu) : null;
+        mmu.blockCache = blockCache;
+    }
+
+    /**
+     * Discard any cached blocks, needed when memory is modified without going through the MMU
+     */
+    void flushBlocks() {
+        if (blockCache != null) {
+            blockCache.flush();
+        }
     }
 
     /**
@@ -69,19 +128,34 @@ public class CPU {
         else {
             if (pc == 0x100 && !mmu.leftBios) {
                 mmu.leftBios = true;
+                mmu.remap();
+            }
+            mDelta = -1;
+            if (blockCache != null && mmu.leftBios && !haltBug && logger == null && debugger == null) {
+                mDelta = blockCache.step();
             }
-            int opcode = next8();
-            if (logger != null) {
-                logger.log(this);
+            if (mDelta < 0) {
+                int opcode = next8();
+                if (logger != null) {
+                    logger.log(this);
+                }
+                if(debugger != null)
+                    debugger.debug(pc, this, opcode);
+                mDelta = tableDispatch ? ops[opcode].execute() : opcode(machine, opcode);
             }
-            if(debugger != null)
-                debugger.debug(pc, this, opcode);
-            mDelta = opcode(machine, opcode);
         }
         m += mDelta;
         return mDelta;
     }
 
+    /**
+     * Account for cycles spent halted without stepping through them
+     * @param cycles Number of m-cycles idled
+     */
+    void idle(int cycles) {
+        m += cycles;
+    }
+
     /**
      * Check for interrupts to service
      * @param machine running machine
@@ -140,7 +214,7 @@ public class CPU {
      */
     private void intRst(int address){
         lastInt = address;
-        sp -= 2;
+        sp = (sp - 2) & 0xffff;
         mmu.write16(sp, pc);
         pc = address;
         mDelta = 5;
@@ -150,9 +224,609 @@ public class CPU {
     /**
      * Called when there is an unimplemented (i.e. bad) opcode
      * @param opcode Problematic byte
+     * @return Number of m-cycles taken
      */
-    private void unimplemented(int opcode){
+    private int unimplemented(int opcode){
         System.err.printf("ERROR: Unimplemented opcode %02x at PC = %04x!%n", opcode, pc - 1);
+        return 1;
+    }
+
+    /**
+     * Fill in the dispatch tables. Each handler works on the registers directly,
+     * so executing an instruction is a single indexed call
+     */
+    private void buildTables() {
+        // 0x00 - 0x3F: loads, 16 bit arithmetic, increments and rotates on A
+        ops[0x00] = () -> 1; // NOP
+        imm16(0x01, nn -> { setBc(nn); return 3; }); // LD BC,nn
+        imm16(0x11, nn -> { setDe(nn); return 3; }); // LD DE,nn
+        imm16(0x21, nn -> { setHl(nn); return 3; }); // LD HL,nn
+        ops[0x02] = () -> { mmu.write8((b << 8) | c, a); return 2; }; // LD (BC),A
+        ops[0x0A] = () -> { a = mmu.read8((b << 8) | c) & 0xff; return 2; }; // LD A,(BC)
+        ops[0x12] = () -> { mmu.write8((d << 8) | e, a); return 2; }; // LD (DE),A
+        ops[0x1A] = () -> { a = mmu.read8((d << 8) | e) & 0xff; return 2; }; // LD A,(DE)
+        imm16(0x31, nn -> { sp = nn; return 3; }); // LD SP,nn
+        ops[0x22] = () -> ldHlADi(false); // LDI (HL),A
+        ops[0x32] = () -> ldHlADi(true); // LDD (HL),A
+        ops[0x2A] = () -> ldAHlDi(false); // LDI A,(HL)
+        ops[0x3A] = () -> ldAHlDi(true); // LDD A,(HL)
+        ops[0x03] = () -> { setBc((((b << 8) | c) + 1) & 0xffff); return 2; }; // INC BC
+        ops[0x0B] = () -> { setBc((((b << 8) | c) - 1) & 0xffff); return 2; }; // DEC BC
+        ops[0x09] = () -> { setHl(add16((h << 8) | l, (b << 8) | c)); return 2; }; // ADD HL,BC
+        ops[0x13] = () -> { setDe((((d << 8) | e) + 1) & 0xffff); return 2; }; // INC DE
+        ops[0x1B] = () -> { setDe((((d << 8) | e) - 1) & 0xffff); return 2; }; // DEC DE
+        ops[0x19] = () -> { setHl(add16((h << 8) | l, (d << 8) | e)); return 2; }; // ADD HL,DE
+        ops[0x23] = () -> { setHl((((h << 8) | l) + 1) & 0xffff); return 2; }; // INC HL
+        ops[0x2B] = () -> { setHl((((h << 8) | l) - 1) & 0xffff); return 2; }; // DEC HL
+        ops[0x29] = () -> { setHl(add16((h << 8) | l, (h << 8) | l)); return 2; }; // ADD HL,HL
+        ops[0x33] = () -> { sp = (sp + 1) & 0xffff; return 2; }; // INC SP
+        ops[0x3B] = () -> { sp = (sp - 1) & 0xffff; return 2; }; // DEC SP
+        ops[0x39] = () -> { setHl(add16((h << 8) | l, sp)); return 2; }; // ADD HL,SP
+        ops[0x04] = () -> { b = inc(b); return 1; }; // INC B
+        ops[0x05] = () -> { b = dec(b); return 1; }; // DEC B
+        imm8(0x06, n -> { b = n; return 2; }); // LD B,n
+        ops[0x0C] = () -> { c = inc(c); return 1; }; // INC C
+        ops[0x0D] = () -> { c = dec(c); return 1; }; // DEC C
+        imm8(0x0E, n -> { c = n; return 2; }); // LD C,n
+        ops[0x14] = () -> { d = inc(d); return 1; }; // INC D
+        ops[0x15] = () -> { d = dec(d); return 1; }; // DEC D
+        imm8(0x16, n -> { d = n; return 2; }); // LD D,n
+        ops[0x1C] = () -> { e = inc(e); return 1; }; // INC E
+        ops[0x1D] = () -> { e = dec(e); return 1; }; // DEC E
+        imm8(0x1E, n -> { e = n; return 2; }); // LD E,n
+        ops[0x24] = () -> { h = inc(h); return 1; }; // INC H
+        ops[0x25] = () -> { h = dec(h); return 1; }; // DEC H
+        imm8(0x26, n -> { h = n; return 2; }); // LD H,n
+        ops[0x2C] = () -> { l = inc(l); return 1; }; // INC L
+        ops[0x2D] = () -> { l = dec(l); return 1; }; // DEC L
+        imm8(0x2E, n -> { l = n; return 2; }); // LD L,n
+        ops[0x34] = () -> { int hl = (h << 8) | l; mmu.write8(hl, inc(mmu.read8(hl))); return 3; }; // INC (HL)
+        ops[0x35] = () -> { int hl = (h << 8) | l; mmu.write8(hl, dec(mmu.read8(hl))); return 3; }; // DEC (HL)
+        imm8(0x36, n -> { mmu.write8((h << 8) | l, n); return 3; }); // LD (HL),n
+        ops[0x3C] = () -> { a = inc(a); return 1; }; // INC A
+        ops[0x3D] = () -> { a = dec(a); return 1; }; // DEC A
+        imm8(0x3E, n -> { a = n; return 2; }); // LD A,n
+        ops[0x07] = () -> rlca(); // RLCA
+        ops[0x0F] = () -> rrca(); // RRCA
+        ops[0x17] = () -> rla(); // RLA
+        ops[0x1F] = () -> rra(); // RRA
+        ops[0x27] = () -> daa(); // DAA
+        ops[0x2F] = () -> cpl(); // CPL
+        ops[0x37] = () -> scf(); // SCF
+        ops[0x3F] = () -> ccf(); // CCF
+        imm16(0x08, nn -> storeSp(nn)); // LD (nn),SP
+        ops[0x10] = () -> stop(mmu.machine); // STOP
+        imm8(0x18, n -> jumpRelative(true, n)); // JR n
+        imm8(0x20, n -> jumpRelative(!zero, n)); // JR NZ,n
+        imm8(0x28, n -> jumpRelative(zero, n)); // JR Z,n
+        imm8(0x30, n -> jumpRelative(!carry, n)); // JR NC,n
+        imm8(0x38, n -> jumpRelative(carry, n)); // JR C,n
+
+        // 0x40 - 0x7F: 8 bit register to register loads
+        ops[0x40] = () -> 1; // LD B,B
+        ops[0x41] = () -> { b = c; return 1; }; // LD B,C
+        ops[0x42] = () -> { b = d; return 1; }; // LD B,D
+        ops[0x43] = () -> { b = e; return 1; }; // LD B,E
+        ops[0x44] = () -> { b = h; return 1; }; // LD B,H
+        ops[0x45] = () -> { b = l; return 1; }; // LD B,L
+        ops[0x46] = () -> { b = mmu.read8((h << 8) | l) & 0xff; return 2; }; // LD B,(HL)
+        ops[0x47] = () -> { b = a; return 1; }; // LD B,A
+        ops[0x48] = () -> { c = b; return 1; }; // LD C,B
+        ops[0x49] = () -> 1; // LD C,C
+        ops[0x4A] = () -> { c = d; return 1; }; // LD C,D
+        ops[0x4B] = () -> { c = e; return 1; }; // LD C,E
+        ops[0x4C] = () -> { c = h; return 1; }; // LD C,H
+        ops[0x4D] = () -> { c = l; return 1; }; // LD C,L
+        ops[0x4E] = () -> { c = mmu.read8((h << 8) | l) & 0xff; return 2; }; // LD C,(HL)
+        ops[0x4F] = () -> { c = a; return 1; }; // LD C,A
+        ops[0x50] = () -> { d = b; return 1; }; // LD D,B
+        ops[0x51] = () -> { d = c; return 1; }; // LD D,C
+        ops[0x52] = () -> 1; // LD D,D
+        ops[0x53] = () -> { d = e; return 1; }; // LD D,E
+        ops[0x54] = () -> { d = h; return 1; }; // LD D,H
+        ops[0x55] = () -> { d = l; return 1; }; // LD D,L
+        ops[0x56] = () -> { d = mmu.read8((h << 8) | l) & 0xff; return 2; }; // LD D,(HL)
+        ops[0x57] = () -> { d = a; return 1; }; // LD D,A
+        ops[0x58] = () -> { e = b; return 1; }; // LD E,B
+        ops[0x59] = () -> { e = c; return 1; }; // LD E,C
+        ops[0x5A] = () -> { e = d; return 1; }; // LD E,D
+        ops[0x5B] = () -> 1; // LD E,E
+        ops[0x5C] = () -> { e = h; return 1; }; // LD E,H
+        ops[0x5D] = () -> { e = l; return 1; }; // LD E,L
+        ops[0x5E] = () -> { e = mmu.read8((h << 8) | l) & 0xff; return 2; }; // LD E,(HL)
+        ops[0x5F] = () -> { e = a; return 1; }; // LD E,A
+        ops[0x60] = () -> { h = b; return 1; }; // LD H,B
+        ops[0x61] = () -> { h = c; return 1; }; // LD H,C
+        ops[0x62] = () -> { h = d; return 1; }; // LD H,D
+        ops[0x63] = () -> { h = e; return 1; }; // LD H,E
+        ops[0x64] = () -> 1; // LD H,H
+        ops[0x65] = () -> { h = l; return 1; }; // LD H,L
+        ops[0x66] = () -> { h = mmu.read8((h << 8) | l) & 0xff; return 2; }; // LD H,(HL)
+        ops[0x67] = () -> { h = a; return 1; }; // LD H,A
+        ops[0x68] = () -> { l = b; return 1; }; // LD L,B
+        ops[0x69] = () -> { l = c; return 1; }; // LD L,C
+        ops[0x6A] = () -> { l = d; return 1; }; // LD L,D
+        ops[0x6B] = () -> { l = e; return 1; }; // LD L,E
+        ops[0x6C] = () -> { l = h; return 1; }; // LD L,H
+        ops[0x6D] = () -> 1; // LD L,L
+        ops[0x6E] = () -> { l = mmu.read8((h << 8) | l) & 0xff; return 2; }; // LD L,(HL)
+        ops[0x6F] = () -> { l = a; return 1; }; // LD L,A
+        ops[0x70] = () -> { mmu.write8((h << 8) | l, b); return 2; }; // LD (HL),B
+        ops[0x71] = () -> { mmu.write8((h << 8) | l, c); return 2; }; // LD (HL),C
+        ops[0x72] = () -> { mmu.write8((h << 8) | l, d); return 2; }; // LD (HL),D
+        ops[0x73] = () -> { mmu.write8((h << 8) | l, e); return 2; }; // LD (HL),E
+        ops[0x74] = () -> { mmu.write8((h << 8) | l, h); return 2; }; // LD (HL),H
+        ops[0x75] = () -> { mmu.write8((h << 8) | l, l); return 2; }; // LD (HL),L
+        ops[0x76] = () -> halt(mmu.machine); // HALT
+        ops[0x77] = () -> { mmu.write8((h << 8) | l, a); return 2; }; // LD (HL),A
+        ops[0x78] = () -> { a = b; return 1; }; // LD A,B
+        ops[0x79] = () -> { a = c; return 1; }; // LD A,C
+        ops[0x7A] = () -> { a = d; return 1; }; // LD A,D
+        ops[0x7B] = () -> { a = e; return 1; }; // LD A,E
+        ops[0x7C] = () -> { a = h; return 1; }; // LD A,H
+        ops[0x7D] = () -> { a = l; return 1; }; // LD A,L
+        ops[0x7E] = () -> { a = mmu.read8((h << 8) | l) & 0xff; return 2; }; // LD A,(HL)
+        ops[0x7F] = () -> 1; // LD A,A
+
+        // 0x80 - 0xBF: 8 bit arithmetic and logic on A
+        ops[0x80] = () -> { a = add8(a, b, false); return 1; }; // ADD A,B
+        ops[0x81] = () -> { a = add8(a, c, false); return 1; }; // ADD A,C
+        ops[0x82] = () -> { a = add8(a, d, false); return 1; }; // ADD A,D
+        ops[0x83] = () -> { a = add8(a, e, false); return 1; }; // ADD A,E
+        ops[0x84] = () -> { a = add8(a, h, false); return 1; }; // ADD A,H
+        ops[0x85] = () -> { a = add8(a, l, false); return 1; }; // ADD A,L
+        ops[0x86] = () -> { a = add8(a, mmu.read8((h << 8) | l), false); return 2; }; // ADD A,(HL)
+        ops[0x87] = () -> { a = add8(a, a, false); return 1; }; // ADD A,A
+        ops[0x88] = () -> { a = add8(a, b, true); return 1; }; // ADC A,B
+        ops[0x89] = () -> { a = add8(a, c, true); return 1; }; // ADC A,C
+        ops[0x8A] = () -> { a = add8(a, d, true); return 1; }; // ADC A,D
+        ops[0x8B] = () -> { a = add8(a, e, true); return 1; }; // ADC A,E
+        ops[0x8C] = () -> { a = add8(a, h, true); return 1; }; // ADC A,H
+        ops[0x8D] = () -> { a = add8(a, l, true); return 1; }; // ADC A,L
+        ops[0x8E] = () -> { a = add8(a, mmu.read8((h << 8) | l), true); return 2; }; // ADC A,(HL)
+        ops[0x8F] = () -> { a = add8(a, a, true); return 1; }; // ADC A,A
+        ops[0x90] = () -> { a = sub8(a, b, false); return 1; }; // SUB A,B
+        ops[0x91] = () -> { a = sub8(a, c, false); return 1; }; // SUB A,C
+        ops[0x92] = () -> { a = sub8(a, d, false); return 1; }; // SUB A,D
+        ops[0x93] = () -> { a = sub8(a, e, false); return 1; }; // SUB A,E
+        ops[0x94] = () -> { a = sub8(a, h, false); return 1; }; // SUB A,H
+        ops[0x95] = () -> { a = sub8(a, l, false); return 1; }; // SUB A,L
+        ops[0x96] = () -> { a = sub8(a, mmu.read8((h << 8) | l), false); return 2; }; // SUB A,(HL)
+        ops[0x97] = () -> { a = sub8(a, a, false); return 1; }; // SUB A,A
+        ops[0x98] = () -> { a = sub8(a, b, true); return 1; }; // SBC A,B
+        ops[0x99] = () -> { a = sub8(a, c, true); return 1; }; // SBC A,C
+        ops[0x9A] = () -> { a = sub8(a, d, true); return 1; }; // SBC A,D
+        ops[0x9B] = () -> { a = sub8(a, e, true); return 1; }; // SBC A,E
+        ops[0x9C] = () -> { a = sub8(a, h, true); return 1; }; // SBC A,H
+        ops[0x9D] = () -> { a = sub8(a, l, true); return 1; }; // SBC A,L
+        ops[0x9E] = () -> { a = sub8(a, mmu.read8((h << 8) | l), true); return 2; }; // SBC A,(HL)
+        ops[0x9F] = () -> { a = sub8(a, a, true); return 1; }; // SBC A,A
+        ops[0xA0] = () -> { a = and8(a, b); return 1; }; // AND A,B
+        ops[0xA1] = () -> { a = and8(a, c); return 1; }; // AND A,C
+        ops[0xA2] = () -> { a = and8(a, d); return 1; }; // AND A,D
+        ops[0xA3] = () -> { a = and8(a, e); return 1; }; // AND A,E
+        ops[0xA4] = () -> { a = and8(a, h); return 1; }; // AND A,H
+        ops[0xA5] = () -> { a = and8(a, l); return 1; }; // AND A,L
+        ops[0xA6] = () -> { a = and8(a, mmu.read8((h << 8) | l)); return 2; }; // AND A,(HL)
+        ops[0xA7] = () -> { a = and8(a, a); return 1; }; // AND A,A
+        ops[0xA8] = () -> { a = xor8(a, b); return 1; }; // XOR A,B
+        ops[0xA9] = () -> { a = xor8(a, c); return 1; }; // XOR A,C
+        ops[0xAA] = () -> { a = xor8(a, d); return 1; }; // XOR A,D
+        ops[0xAB] = () -> { a = xor8(a, e); return 1; }; // XOR A,E
+        ops[0xAC] = () -> { a = xor8(a, h); return 1; }; // XOR A,H
+        ops[0xAD] = () -> { a = xor8(a, l); return 1; }; // XOR A,L
+        ops[0xAE] = () -> { a = xor8(a, mmu.read8((h << 8) | l)); return 2; }; // XOR A,(HL)
+        ops[0xAF] = () -> { a = xor8(a, a); return 1; }; // XOR A,A
+        ops[0xB0] = () -> { a = or8(a, b); return 1; }; // OR A,B
+        ops[0xB1] = () -> { a = or8(a, c); return 1; }; // OR A,C
+        ops[0xB2] = () -> { a = or8(a, d); return 1; }; // OR A,D
+        ops[0xB3] = () -> { a = or8(a, e); return 1; }; // OR A,E
+        ops[0xB4] = () -> { a = or8(a, h); return 1; }; // OR A,H
+        ops[0xB5] = () -> { a = or8(a, l); return 1; }; // OR A,L
+        ops[0xB6] = () -> { a = or8(a, mmu.read8((h << 8) | l)); return 2; }; // OR A,(HL)
+        ops[0xB7] = () -> { a = or8(a, a); return 1; }; // OR A,A
+        ops[0xB8] = () -> { sub8(a, b, false); return 1; }; // CP A,B
+        ops[0xB9] = () -> { sub8(a, c, false); return 1; }; // CP A,C
+        ops[0xBA] = () -> { sub8(a, d, false); return 1; }; // CP A,D
+        ops[0xBB] = () -> { sub8(a, e, false); return 1; }; // CP A,E
+        ops[0xBC] = () -> { sub8(a, h, false); return 1; }; // CP A,H
+        ops[0xBD] = () -> { sub8(a, l, false); return 1; }; // CP A,L
+        ops[0xBE] = () -> { sub8(a, mmu.read8((h << 8) | l), false); return 2; }; // CP A,(HL)
+        ops[0xBF] = () -> { sub8(a, a, false); return 1; }; // CP A,A
+
+        // 0xC0 - 0xFF: control flow, stack, immediates and high memory
+        imm8(0xC6, n -> { a = add8(a, n, false); return 2; }); // ADD A,n
+        imm8(0xCE, n -> { a = add8(a, n, true); return 2; }); // ADC A,n
+        imm8(0xD6, n -> { a = sub8(a, n, false); return 2; }); // SUB A,n
+        imm8(0xDE, n -> { a = sub8(a, n, true); return 2; }); // SBC A,n
+        imm8(0xE6, n -> { a = and8(a, n); return 2; }); // AND A,n
+        imm8(0xEE, n -> { a = xor8(a, n); return 2; }); // XOR A,n
+        imm8(0xF6, n -> { a = or8(a, n); return 2; }); // OR A,n
+        imm8(0xFE, n -> { sub8(a, n, false); return 2; }); // CP A,n
+        ops[0xC0] = () -> returnConditional(!zero); // RET NZ
+        imm16(0xC2, nn -> jumpImmediate(!zero, nn)); // JP NZ,nn
+        imm16(0xC4, nn -> call(!zero, nn)); // CALL NZ,nn
+        ops[0xC8] = () -> returnConditional(zero); // RET Z
+        imm16(0xCA, nn -> jumpImmediate(zero, nn)); // JP Z,nn
+        imm16(0xCC, nn -> call(zero, nn)); // CALL Z,nn
+        ops[0xD0] = () -> returnConditional(!carry); // RET NC
+        imm16(0xD2, nn -> jumpImmediate(!carry, nn)); // JP NC,nn
+        imm16(0xD4, nn -> call(!carry, nn)); // CALL NC,nn
+        ops[0xD8] = () -> returnConditional(carry); // RET C
+        imm16(0xDA, nn -> jumpImmediate(carry, nn)); // JP C,nn
+        imm16(0xDC, nn -> call(carry, nn)); // CALL C,nn
+        ops[0xC1] = () -> { setBc(mmu.read16(sp)); sp = (sp + 2) & 0xffff; return 3; }; // POP BC
+        ops[0xC5] = () -> push((b << 8) | c); // PUSH BC
+        ops[0xD1] = () -> { setDe(mmu.read16(sp)); sp = (sp + 2) & 0xffff; return 3; }; // POP DE
+        ops[0xD5] = () -> push((d << 8) | e); // PUSH DE
+        ops[0xE1] = () -> { setHl(mmu.read16(sp)); sp = (sp + 2) & 0xffff; return 3; }; // POP HL
+        ops[0xE5] = () -> push((h << 8) | l); // PUSH HL
+        ops[0xF1] = () -> { int af = mmu.read16(sp); sp = (sp + 2) & 0xffff; a = (af >> 8) & 0xff; setFlagRegister(af & 0xff); return 3; }; // POP AF
+        ops[0xF5] = () -> push((a << 8) | getFlagRegister()); // PUSH AF
+        ops[0xC7] = () -> rst(0x00); // RST 0x00
+        ops[0xCF] = () -> rst(0x08); // RST 0x08
+        ops[0xD7] = () -> rst(0x10); // RST 0x10
+        ops[0xDF] = () -> rst(0x18); // RST 0x18
+        ops[0xE7] = () -> rst(0x20); // RST 0x20
+        ops[0xEF] = () -> rst(0x28); // RST 0x28
+        ops[0xF7] = () -> rst(0x30); // RST 0x30
+        ops[0xFF] = () -> rst(0x38); // RST 0x38
+        imm16(0xC3, nn -> jumpImmediate(true, nn)); // JP nn
+        ops[0xC9] = () -> ret(); // RET
+        ops[0xD9] = () -> reti(); // RETI
+        ops[0xCB] = () -> cbOps[next8()].execute(); // CB prefix
+        imm16(0xCD, nn -> call(true, nn)); // CALL nn
+        imm8(0xE0, n -> ldShadow(true, n)); // LDH (n),A
+        imm8(0xF0, n -> ldShadow(false, n)); // LDH A,(n)
+        ops[0xE2] = () -> { mmu.write8(0xff00 + c, a); return 2; }; // LD (C),A
+        ops[0xF2] = () -> { a = mmu.read8(0xff00 + c) & 0xff; return 2; }; // LD A,(C)
+        imm8(0xE8, n -> add16SpImm(n)); // ADD SP,n
+        imm8(0xF8, n -> ldHlSpImm(n)); // LD HL,SP+n
+        ops[0xE9] = () -> { pc = (h << 8) | l; return 1; }; // JP HL
+        ops[0xF9] = () -> { sp = (h << 8) | l; return 2; }; // LD SP,HL
+        imm16(0xEA, nn -> { mmu.write8(nn, a); return 4; }); // LD (nn),A
+        imm16(0xFA, nn -> { a = mmu.read8(nn) & 0xff; return 4; }); // LD A,(nn)
+        ops[0xF3] = () -> { interrupts = false; return 1; }; // DI
+        ops[0xFB] = () -> { interrupts = true; return 1; }; // EI
+
+        // Opcodes removed from the z80
+        ops[0xD3] = () -> unimplemented(0xD3);
+        ops[0xDB] = () -> unimplemented(0xDB);
+        ops[0xDD] = () -> unimplemented(0xDD);
+        ops[0xE3] = () -> unimplemented(0xE3);
+        ops[0xE4] = () -> unimplemented(0xE4);
+        ops[0xEB] = () -> unimplemented(0xEB);
+        ops[0xEC] = () -> unimplemented(0xEC);
+        ops[0xED] = () -> unimplemented(0xED);
+        ops[0xF4] = () -> unimplemented(0xF4);
+        ops[0xFC] = () -> unimplemented(0xFC);
+        ops[0xFD] = () -> unimplemented(0xFD);
+
+        // CB prefixed: rotates, shifts, and single bit operations
+        cbOps[0x00] = () -> { b = rlc(b); return 2; }; // RLC B
+        cbOps[0x01] = () -> { c = rlc(c); return 2; }; // RLC C
+        cbOps[0x02] = () -> { d = rlc(d); return 2; }; // RLC D
+        cbOps[0x03] = () -> { e = rlc(e); return 2; }; // RLC E
+        cbOps[0x04] = () -> { h = rlc(h); return 2; }; // RLC H
+        cbOps[0x05] = () -> { l = rlc(l); return 2; }; // RLC L
+        cbOps[0x06] = () -> { int hl = (h << 8) | l; mmu.write8(hl, rlc(mmu.read8(hl))); return 4; }; // RLC (HL)
+        cbOps[0x07] = () -> { a = rlc(a); return 2; }; // RLC A
+        cbOps[0x08] = () -> { b = rrc(b); return 2; }; // RRC B
+        cbOps[0x09] = () -> { c = rrc(c); return 2; }; // RRC C
+        cbOps[0x0A] = () -> { d = rrc(d); return 2; }; // RRC D
+        cbOps[0x0B] = () -> { e = rrc(e); return 2; }; // RRC E
+        cbOps[0x0C] = () -> { h = rrc(h); return 2; }; // RRC H
+        cbOps[0x0D] = () -> { l = rrc(l); return 2; }; // RRC L
+        cbOps[0x0E] = () -> { int hl = (h << 8) | l; mmu.write8(hl, rrc(mmu.read8(hl))); return 4; }; // RRC (HL)
+        cbOps[0x0F] = () -> { a = rrc(a); return 2; }; // RRC A
+        cbOps[0x10] = () -> { b = rotl(b); return 2; }; // RL B
+        cbOps[0x11] = () -> { c = rotl(c); return 2; }; // RL C
+        cbOps[0x12] = () -> { d = rotl(d); return 2; }; // RL D
+        cbOps[0x13] = () -> { e = rotl(e); return 2; }; // RL E
+        cbOps[0x14] = () -> { h = rotl(h); return 2; }; // RL H
+        cbOps[0x15] = () -> { l = rotl(l); return 2; }; // RL L
+        cbOps[0x16] = () -> { int hl = (h << 8) | l; mmu.write8(hl, rotl(mmu.read8(hl))); return 4; }; // RL (HL)
+        cbOps[0x17] = () -> { a = rotl(a); return 2; }; // RL A
+        cbOps[0x18] = () -> { b = rotr(b); return 2; }; // RR B
+        cbOps[0x19] = () -> { c = rotr(c); return 2; }; // RR C
+        cbOps[0x1A] = () -> { d = rotr(d); return 2; }; // RR D
+        cbOps[0x1B] = () -> { e = rotr(e); return 2; }; // RR E
+        cbOps[0x1C] = () -> { h = rotr(h); return 2; }; // RR H
+        cbOps[0x1D] = () -> { l = rotr(l); return 2; }; // RR L
+        cbOps[0x1E] = () -> { int hl = (h << 8) | l; mmu.write8(hl, rotr(mmu.read8(hl))); return 4; }; // RR (HL)
+        cbOps[0x1F] = () -> { a = rotr(a); return 2; }; // RR A
+        cbOps[0x20] = () -> { b = shl(b); return 2; }; // SLA B
+        cbOps[0x21] = () -> { c = shl(c); return 2; }; // SLA C
+        cbOps[0x22] = () -> { d = shl(d); return 2; }; // SLA D
+        cbOps[0x23] = () -> { e = shl(e); return 2; }; // SLA E
+        cbOps[0x24] = () -> { h = shl(h); return 2; }; // SLA H
+        cbOps[0x25] = () -> { l = shl(l); return 2; }; // SLA L
+        cbOps[0x26] = () -> { int hl = (h << 8) | l; mmu.write8(hl, shl(mmu.read8(hl))); return 4; }; // SLA (HL)
+        cbOps[0x27] = () -> { a = shl(a); return 2; }; // SLA A
+        cbOps[0x28] = () -> { b = shar(b); return 2; }; // SRA B
+        cbOps[0x29] = () -> { c = shar(c); return 2; }; // SRA C
+        cbOps[0x2A] = () -> { d = shar(d); return 2; }; // SRA D
+        cbOps[0x2B] = () -> { e = shar(e); return 2; }; // SRA E
+        cbOps[0x2C] = () -> { h = shar(h); return 2; }; // SRA H
+        cbOps[0x2D] = () -> { l = shar(l); return 2; }; // SRA L
+        cbOps[0x2E] = () -> { int hl = (h << 8) | l; mmu.write8(hl, shar(mmu.read8(hl))); return 4; }; // SRA (HL)
+        cbOps[0x2F] = () -> { a = shar(a); return 2; }; // SRA A
+        cbOps[0x30] = () -> { b = swap(b); return 2; }; // SWAP B
+        cbOps[0x31] = () -> { c = swap(c); return 2; }; // SWAP C
+        cbOps[0x32] = () -> { d = swap(d); return 2; }; // SWAP D
+        cbOps[0x33] = () -> { e = swap(e); return 2; }; // SWAP E
+        cbOps[0x34] = () -> { h = swap(h); return 2; }; // SWAP H
+        cbOps[0x35] = () -> { l = swap(l); return 2; }; // SWAP L
+        cbOps[0x36] = () -> { int hl = (h << 8) | l; mmu.write8(hl, swap(mmu.read8(hl))); return 4; }; // SWAP (HL)
+        cbOps[0x37] = () -> { a = swap(a); return 2; }; // SWAP A
+        cbOps[0x38] = () -> { b = shr(b); return 2; }; // SRL B
+        cbOps[0x39] = () -> { c = shr(c); return 2; }; // SRL C
+        cbOps[0x3A] = () -> { d = shr(d); return 2; }; // SRL D
+        cbOps[0x3B] = () -> { e = shr(e); return 2; }; // SRL E
+        cbOps[0x3C] = () -> { h = shr(h); return 2; }; // SRL H
+        cbOps[0x3D] = () -> { l = shr(l); return 2; }; // SRL L
+        cbOps[0x3E] = () -> { int hl = (h << 8) | l; mmu.write8(hl, shr(mmu.read8(hl))); return 4; }; // SRL (HL)
+        cbOps[0x3F] = () -> { a = shr(a); return 2; }; // SRL A
+        cbOps[0x40] = () -> { bit(b, 0); return 2; }; // BIT 0,B
+        cbOps[0x41] = () -> { bit(c, 0); return 2; }; // BIT 0,C
+        cbOps[0x42] = () -> { bit(d, 0); return 2; }; // BIT 0,D
+        cbOps[0x43] = () -> { bit(e, 0); return 2; }; // BIT 0,E
+        cbOps[0x44] = () -> { bit(h, 0); return 2; }; // BIT 0,H
+        cbOps[0x45] = () -> { bit(l, 0); return 2; }; // BIT 0,L
+        cbOps[0x46] = () -> { bit(mmu.read8((h << 8) | l), 0); return 3; }; // BIT 0,(HL)
+        cbOps[0x47] = () -> { bit(a, 0); return 2; }; // BIT 0,A
+        cbOps[0x48] = () -> { bit(b, 1); return 2; }; // BIT 1,B
+        cbOps[0x49] = () -> { bit(c, 1); return 2; }; // BIT 1,C
+        cbOps[0x4A] = () -> { bit(d, 1); return 2; }; // BIT 1,D
+        cbOps[0x4B] = () -> { bit(e, 1); return 2; }; // BIT 1,E
+        cbOps[0x4C] = () -> { bit(h, 1); return 2; }; // BIT 1,H
+        cbOps[0x4D] = () -> { bit(l, 1); return 2; }; // BIT 1,L
+        cbOps[0x4E] = () -> { bit(mmu.read8((h << 8) | l), 1); return 3; }; // BIT 1,(HL)
+        cbOps[0x4F] = () -> { bit(a, 1); return 2; }; // BIT 1,A
+        cbOps[0x50] = () -> { bit(b, 2); return 2; }; // BIT 2,B
+        cbOps[0x51] = () -> { bit(c, 2); return 2; }; // BIT 2,C
+        cbOps[0x52] = () -> { bit(d, 2); return 2; }; // BIT 2,D
+        cbOps[0x53] = () -> { bit(e, 2); return 2; }; // BIT 2,E
+        cbOps[0x54] = () -> { bit(h, 2); return 2; }; // BIT 2,H
+        cbOps[0x55] = () -> { bit(l, 2); return 2; }; // BIT 2,L
+        cbOps[0x56] = () -> { bit(mmu.read8((h << 8) | l), 2); return 3; }; // BIT 2,(HL)
+        cbOps[0x57] = () -> { bit(a, 2); return 2; }; // BIT 2,A
+        cbOps[0x58] = () -> { bit(b, 3); return 2; }; // BIT 3,B
+        cbOps[0x59] = () -> { bit(c, 3); return 2; }; // BIT 3,C
+        cbOps[0x5A] = () -> { bit(d, 3); return 2; }; // BIT 3,D
+        cbOps[0x5B] = () -> { bit(e, 3); return 2; }; // BIT 3,E
+        cbOps[0x5C] = () -> { bit(h, 3); return 2; }; // BIT 3,H
+        cbOps[0x5D] = () -> { bit(l, 3); return 2; }; // BIT 3,L
+        cbOps[0x5E] = () -> { bit(mmu.read8((h << 8) | l), 3); return 3; }; // BIT 3,(HL)
+        cbOps[0x5F] = () -> { bit(a, 3); return 2; }; // BIT 3,A
+        cbOps[0x60] = () -> { bit(b, 4); return 2; }; // BIT 4,B
+        cbOps[0x61] = () -> { bit(c, 4); return 2; }; // BIT 4,C
+        cbOps[0x62] = () -> { bit(d, 4); return 2; }; // BIT 4,D
+        cbOps[0x63] = () -> { bit(e, 4); return 2; }; // BIT 4,E
+        cbOps[0x64] = () -> { bit(h, 4); return 2; }; // BIT 4,H
+        cbOps[0x65] = () -> { bit(l, 4); return 2; }; // BIT 4,L
+        cbOps[0x66] = () -> { bit(mmu.read8((h << 8) | l), 4); return 3; }; // BIT 4,(HL)
+        cbOps[0x67] = () -> { bit(a, 4); return 2; }; // BIT 4,A
+        cbOps[0x68] = () -> { bit(b, 5); return 2; }; // BIT 5,B
+        cbOps[0x69] = () -> { bit(c, 5); return 2; }; // BIT 5,C
+        cbOps[0x6A] = () -> { bit(d, 5); return 2; }; // BIT 5,D
+        cbOps[0x6B] = () -> { bit(e, 5); return 2; }; // BIT 5,E
+        cbOps[0x6C] = () -> { bit(h, 5); return 2; }; // BIT 5,H
+        cbOps[0x6D] = () -> { bit(l, 5); return 2; }; // BIT 5,L
+        cbOps[0x6E] = () -> { bit(mmu.read8((h << 8) | l), 5); return 3; }; // BIT 5,(HL)
+        cbOps[0x6F] = () -> { bit(a, 5); return 2; }; // BIT 5,A
+        cbOps[0x70] = () -> { bit(b, 6); return 2; }; // BIT 6,B
+        cbOps[0x71] = () -> { bit(c, 6); return 2; }; // BIT 6,C
+        cbOps[0x72] = () -> { bit(d, 6); return 2; }; // BIT 6,D
+        cbOps[0x73] = () -> { bit(e, 6); return 2; }; // BIT 6,E
+        cbOps[0x74] = () -> { bit(h, 6); return 2; }; // BIT 6,H
+        cbOps[0x75] = () -> { bit(l, 6); return 2; }; // BIT 6,L
+        cbOps[0x76] = () -> { bit(mmu.read8((h << 8) | l), 6); return 3; }; // BIT 6,(HL)
+        cbOps[0x77] = () -> { bit(a, 6); return 2; }; // BIT 6,A
+        cbOps[0x78] = () -> { bit(b, 7); return 2; }; // BIT 7,B
+        cbOps[0x79] = () -> { bit(c, 7); return 2; }; // BIT 7,C
+        cbOps[0x7A] = () -> { bit(d, 7); return 2; }; // BIT 7,D
+        cbOps[0x7B] = () -> { bit(e, 7); return 2; }; // BIT 7,E
+        cbOps[0x7C] = () -> { bit(h, 7); return 2; }; // BIT 7,H
+        cbOps[0x7D] = () -> { bit(l, 7); return 2; }; // BIT 7,L
+        cbOps[0x7E] = () -> { bit(mmu.read8((h << 8) | l), 7); return 3; }; // BIT 7,(HL)
+        cbOps[0x7F] = () -> { bit(a, 7); return 2; }; // BIT 7,A
+        cbOps[0x80] = () -> { b &= 0xfe; return 2; }; // RES 0,B
+        cbOps[0x81] = () -> { c &= 0xfe; return 2; }; // RES 0,C
+        cbOps[0x82] = () -> { d &= 0xfe; return 2; }; // RES 0,D
+        cbOps[0x83] = () -> { e &= 0xfe; return 2; }; // RES 0,E
+        cbOps[0x84] = () -> { h &= 0xfe; return 2; }; // RES 0,H
+        cbOps[0x85] = () -> { l &= 0xfe; return 2; }; // RES 0,L
+        cbOps[0x86] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) & 0xfe); return 4; }; // RES 0,(HL)
+        cbOps[0x87] = () -> { a &= 0xfe; return 2; }; // RES 0,A
+        cbOps[0x88] = () -> { b &= 0xfd; return 2; }; // RES 1,B
+        cbOps[0x89] = () -> { c &= 0xfd; return 2; }; // RES 1,C
+        cbOps[0x8A] = () -> { d &= 0xfd; return 2; }; // RES 1,D
+        cbOps[0x8B] = () -> { e &= 0xfd; return 2; }; // RES 1,E
+        cbOps[0x8C] = () -> { h &= 0xfd; return 2; }; // RES 1,H
+        cbOps[0x8D] = () -> { l &= 0xfd; return 2; }; // RES 1,L
+        cbOps[0x8E] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) & 0xfd); return 4; }; // RES 1,(HL)
+        cbOps[0x8F] = () -> { a &= 0xfd; return 2; }; // RES 1,A
+        cbOps[0x90] = () -> { b &= 0xfb; return 2; }; // RES 2,B
+        cbOps[0x91] = () -> { c &= 0xfb; return 2; }; // RES 2,C
+        cbOps[0x92] = () -> { d &= 0xfb; return 2; }; // RES 2,D
+        cbOps[0x93] = () -> { e &= 0xfb; return 2; }; // RES 2,E
+        cbOps[0x94] = () -> { h &= 0xfb; return 2; }; // RES 2,H
+        cbOps[0x95] = () -> { l &= 0xfb; return 2; }; // RES 2,L
+        cbOps[0x96] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) & 0xfb); return 4; }; // RES 2,(HL)
+        cbOps[0x97] = () -> { a &= 0xfb; return 2; }; // RES 2,A
+        cbOps[0x98] = () -> { b &= 0xf7; return 2; }; // RES 3,B
+        cbOps[0x99] = () -> { c &= 0xf7; return 2; }; // RES 3,C
+        cbOps[0x9A] = () -> { d &= 0xf7; return 2; }; // RES 3,D
+        cbOps[0x9B] = () -> { e &= 0xf7; return 2; }; // RES 3,E
+        cbOps[0x9C] = () -> { h &= 0xf7; return 2; }; // RES 3,H
+        cbOps[0x9D] = () -> { l &= 0xf7; return 2; }; // RES 3,L
+        cbOps[0x9E] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) & 0xf7); return 4; }; // RES 3,(HL)
+        cbOps[0x9F] = () -> { a &= 0xf7; return 2; }; // RES 3,A
+        cbOps[0xA0] = () -> { b &= 0xef; return 2; }; // RES 4,B
+        cbOps[0xA1] = () -> { c &= 0xef; return 2; }; // RES 4,C
+        cbOps[0xA2] = () -> { d &= 0xef; return 2; }; // RES 4,D
+        cbOps[0xA3] = () -> { e &= 0xef; return 2; }; // RES 4,E
+        cbOps[0xA4] = () -> { h &= 0xef; return 2; }; // RES 4,H
+        cbOps[0xA5] = () -> { l &= 0xef; return 2; }; // RES 4,L
+        cbOps[0xA6] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) & 0xef); return 4; }; // RES 4,(HL)
+        cbOps[0xA7] = () -> { a &= 0xef; return 2; }; // RES 4,A
+        cbOps[0xA8] = () -> { b &= 0xdf; return 2; }; // RES 5,B
+        cbOps[0xA9] = () -> { c &= 0xdf; return 2; }; // RES 5,C
+        cbOps[0xAA] = () -> { d &= 0xdf; return 2; }; // RES 5,D
+        cbOps[0xAB] = () -> { e &= 0xdf; return 2; }; // RES 5,E
+        cbOps[0xAC] = () -> { h &= 0xdf; return 2; }; // RES 5,H
+        cbOps[0xAD] = () -> { l &= 0xdf; return 2; }; // RES 5,L
+        cbOps[0xAE] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) & 0xdf); return 4; }; // RES 5,(HL)
+        cbOps[0xAF] = () -> { a &= 0xdf; return 2; }; // RES 5,A
+        cbOps[0xB0] = () -> { b &= 0xbf; return 2; }; // RES 6,B
+        cbOps[0xB1] = () -> { c &= 0xbf; return 2; }; // RES 6,C
+        cbOps[0xB2] = () -> { d &= 0xbf; return 2; }; // RES 6,D
+        cbOps[0xB3] = () -> { e &= 0xbf; return 2; }; // RES 6,E
+        cbOps[0xB4] = () -> { h &= 0xbf; return 2; }; // RES 6,H
+        cbOps[0xB5] = () -> { l &= 0xbf; return 2; }; // RES 6,L
+        cbOps[0xB6] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) & 0xbf); return 4; }; // RES 6,(HL)
+        cbOps[0xB7] = () -> { a &= 0xbf; return 2; }; // RES 6,A
+        cbOps[0xB8] = () -> { b &= 0x7f; return 2; }; // RES 7,B
+        cbOps[0xB9] = () -> { c &= 0x7f; return 2; }; // RES 7,C
+        cbOps[0xBA] = () -> { d &= 0x7f; return 2; }; // RES 7,D
+        cbOps[0xBB] = () -> { e &= 0x7f; return 2; }; // RES 7,E
+        cbOps[0xBC] = () -> { h &= 0x7f; return 2; }; // RES 7,H
+        cbOps[0xBD] = () -> { l &= 0x7f; return 2; }; // RES 7,L
+        cbOps[0xBE] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) & 0x7f); return 4; }; // RES 7,(HL)
+        cbOps[0xBF] = () -> { a &= 0x7f; return 2; }; // RES 7,A
+        cbOps[0xC0] = () -> { b |= 0x01; return 2; }; // SET 0,B
+        cbOps[0xC1] = () -> { c |= 0x01; return 2; }; // SET 0,C
+        cbOps[0xC2] = () -> { d |= 0x01; return 2; }; // SET 0,D
+        cbOps[0xC3] = () -> { e |= 0x01; return 2; }; // SET 0,E
+        cbOps[0xC4] = () -> { h |= 0x01; return 2; }; // SET 0,H
+        cbOps[0xC5] = () -> { l |= 0x01; return 2; }; // SET 0,L
+        cbOps[0xC6] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) | 0x01); return 4; }; // SET 0,(HL)
+        cbOps[0xC7] = () -> { a |= 0x01; return 2; }; // SET 0,A
+        cbOps[0xC8] = () -> { b |= 0x02; return 2; }; // SET 1,B
+        cbOps[0xC9] = () -> { c |= 0x02; return 2; }; // SET 1,C
+        cbOps[0xCA] = () -> { d |= 0x02; return 2; }; // SET 1,D
+        cbOps[0xCB] = () -> { e |= 0x02; return 2; }; // SET 1,E
+        cbOps[0xCC] = () -> { h |= 0x02; return 2; }; // SET 1,H
+        cbOps[0xCD] = () -> { l |= 0x02; return 2; }; // SET 1,L
+        cbOps[0xCE] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) | 0x02); return 4; }; // SET 1,(HL)
+        cbOps[0xCF] = () -> { a |= 0x02; return 2; }; // SET 1,A
+        cbOps[0xD0] = () -> { b |= 0x04; return 2; }; // SET 2,B
+        cbOps[0xD1] = () -> { c |= 0x04; return 2; }; // SET 2,C
+        cbOps[0xD2] = () -> { d |= 0x04; return 2; }; // SET 2,D
+        cbOps[0xD3] = () -> { e |= 0x04; return 2; }; // SET 2,E
+        cbOps[0xD4] = () -> { h |= 0x04; return 2; }; // SET 2,H
+        cbOps[0xD5] = () -> { l |= 0x04; return 2; }; // SET 2,L
+        cbOps[0xD6] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) | 0x04); return 4; }; // SET 2,(HL)
+        cbOps[0xD7] = () -> { a |= 0x04; return 2; }; // SET 2,A
+        cbOps[0xD8] = () -> { b |= 0x08; return 2; }; // SET 3,B
+        cbOps[0xD9] = () -> { c |= 0x08; return 2; }; // SET 3,C
+        cbOps[0xDA] = () -> { d |= 0x08; return 2; }; // SET 3,D
+        cbOps[0xDB] = () -> { e |= 0x08; return 2; }; // SET 3,E
+        cbOps[0xDC] = () -> { h |= 0x08; return 2; }; // SET 3,H
+        cbOps[0xDD] = () -> { l |= 0x08; return 2; }; // SET 3,L
+        cbOps[0xDE] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) | 0x08); return 4; }; // SET 3,(HL)
+        cbOps[0xDF] = () -> { a |= 0x08; return 2; }; // SET 3,A
+        cbOps[0xE0] = () -> { b |= 0x10; return 2; }; // SET 4,B
+        cbOps[0xE1] = () -> { c |= 0x10; return 2; }; // SET 4,C
+        cbOps[0xE2] = () -> { d |= 0x10; return 2; }; // SET 4,D
+        cbOps[0xE3] = () -> { e |= 0x10; return 2; }; // SET 4,E
+        cbOps[0xE4] = () -> { h |= 0x10; return 2; }; // SET 4,H
+        cbOps[0xE5] = () -> { l |= 0x10; return 2; }; // SET 4,L
+        cbOps[0xE6] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) | 0x10); return 4; }; // SET 4,(HL)
+        cbOps[0xE7] = () -> { a |= 0x10; return 2; }; // SET 4,A
+        cbOps[0xE8] = () -> { b |= 0x20; return 2; }; // SET 5,B
+        cbOps[0xE9] = () -> { c |= 0x20; return 2; }; // SET 5,C
+        cbOps[0xEA] = () -> { d |= 0x20; return 2; }; // SET 5,D
+        cbOps[0xEB] = () -> { e |= 0x20; return 2; }; // SET 5,E
+        cbOps[0xEC] = () -> { h |= 0x20; return 2; }; // SET 5,H
+        cbOps[0xED] = () -> { l |= 0x20; return 2; }; // SET 5,L
+        cbOps[0xEE] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) | 0x20); return 4; }; // SET 5,(HL)
+        cbOps[0xEF] = () -> { a |= 0x20; return 2; }; // SET 5,A
+        cbOps[0xF0] = () -> { b |= 0x40; return 2; }; // SET 6,B
+        cbOps[0xF1] = () -> { c |= 0x40; return 2; }; // SET 6,C
+        cbOps[0xF2] = () -> { d |= 0x40; return 2; }; // SET 6,D
+        cbOps[0xF3] = () -> { e |= 0x40; return 2; }; // SET 6,E
+        cbOps[0xF4] = () -> { h |= 0x40; return 2; }; // SET 6,H
+        cbOps[0xF5] = () -> { l |= 0x40; return 2; }; // SET 6,L
+        cbOps[0xF6] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) | 0x40); return 4; }; // SET 6,(HL)
+        cbOps[0xF7] = () -> { a |= 0x40; return 2; }; // SET 6,A
+        cbOps[0xF8] = () -> { b |= 0x80; return 2; }; // SET 7,B
+        cbOps[0xF9] = () -> { c |= 0x80; return 2; }; // SET 7,C
+        cbOps[0xFA] = () -> { d |= 0x80; return 2; }; // SET 7,D
+        cbOps[0xFB] = () -> { e |= 0x80; return 2; }; // SET 7,E
+        cbOps[0xFC] = () -> { h |= 0x80; return 2; }; // SET 7,H
+        cbOps[0xFD] = () -> { l |= 0x80; return 2; }; // SET 7,L
+        cbOps[0xFE] = () -> { int hl = (h << 8) | l; mmu.write8(hl, mmu.read8(hl) | 0x80); return 4; }; // SET 7,(HL)
+        cbOps[0xFF] = () -> { a |= 0x80; return 2; }; // SET 7,A
+    }
+
+    /**
+     * Get the handler for an instruction whose operand has already been fetched
+     * @param opcode Opcode, or second byte for CB-prefixed instructions
+     * @param operand Immediate operand, if any
+     * @return Handler to execute with PC already past the instruction
+     */
+    Instruction decode(int opcode, int operand) {
+        if (opcode == 0xCB) {
+            return cbOps[operand];
+        }
+        Operation operation = immOps[opcode];
+        if (operation == null) {
+            return ops[opcode];
+        }
+        return () -> operation.execute(operand);
+    }
+
+    /**
+     *
+     * @param opcode Opcode
+     * @return Length in bytes of the instruction, including operand or CB prefix
+     */
+    int instructionSize(int opcode) {
+        return opcode == 0xCB ? 2 : 1 + operandBytes[opcode];
+    }
+
+    /**
+     *
+     * @param opcode Opcode
+     * @return true if the instruction may transfer control, so nothing after it belongs to the same basic block
+     */
+    static boolean endsBlock(int opcode) {
+        switch (opcode) {
+            case 0x10: // STOP
+            case 0x18: case 0x20: case 0x28: case 0x30: case 0x38: // JR
+            case 0x76: // HALT
+            case 0xC0: case 0xC8: case 0xD0: case 0xD8: case 0xC9: case 0xD9: // RET
+            case 0xC2: case 0xCA: case 0xD2: case 0xDA: case 0xC3: case 0xE9: // JP
+            case 0xC4: case 0xCC: case 0xD4: case 0xDC: case 0xCD: // CALL
+            case 0xC7: case 0xCF: case 0xD7: case 0xDF: case 0xE7: case 0xEF: case 0xF7: case 0xFF: // RST
+            case 0xD3: case 0xDB: case 0xDD: case 0xE3: case 0xE4: case 0xEB: case 0xEC: case 0xED: case 0xF4: case 0xFC: case 0xFD:
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Register an instruction followed by a one byte operand
+     * @param opcode Opcode
+     * @param operation Handler receiving the operand
+     */
+    private void imm8(int opcode, Operation operation) {
+        immOps[opcode] = operation;
+        operandBytes[opcode] = 1;
+        ops[opcode] = () -> operation.execute(next8());
+    }
+
+    /**
+     * Register an instruction followed by a two byte operand
+     * @param opcode Opcode
+     * @param operation Handler receiving the operand
+     */
+    private void imm16(int opcode, Operation operation) {
+        immOps[opcode] = operation;
+        operandBytes[opcode] = 2;
+        ops[opcode] = () -> operation.execute(next16());
     }
 
     // For debugging only
@@ -308,9 +982,9 @@ public class CPU {
 
             // Shadowed immediate memory
             case 0xE0:
-                return ldShadow(true);
+                return ldShadow(true, next8());
             case 0xF0:
-                return ldShadow(false);
+                return ldShadow(false, next8());
 
             // 16 bit immediates
             case 0x01:
@@ -344,30 +1018,22 @@ public class CPU {
             case 0x00: // NOP
                 return 1;
             case 0x10: // STOP
-                if (mmu.pendingSpeedSwitch) {
-                    if (machine.trySpeedSwitch()) {
-                        mmu.pendingSpeedSwitch = false;
-                    }
-                }
-                else {
-                    machine.stop = true;
-                }
-                return 1;
+                return stop(machine);
             case 0x20: // JR NZ,n
-                return jumpRelative(!zero);
+                return jumpRelative(!zero, next8());
             case 0x30: // JR NC,n
-                return jumpRelative(!carry);
+                return jumpRelative(!carry, next8());
             case 0xC0: // RET NZ
                 return returnConditional(!zero);
             case 0xD0: // RET NC
                 return returnConditional(!carry);
 
             case 0xC2: // JP NZ
-                return jumpImmediate(!zero);
+                return jumpImmediate(!zero, next16());
             case 0xD2: // JP NC
-                return jumpImmediate(!carry);
+                return jumpImmediate(!carry, next16());
             case 0xC3: // JP nn
-                return jumpImmediate(true);
+                return jumpImmediate(true, next16());
 
             //case 0xD3: REMOVED OPCODE OUT n,A
             //case 0xE3: REMOVED OPCODE EX (SP),HL
@@ -376,26 +1042,14 @@ public class CPU {
                 return 1;
 
             case 0xC4: // CALL NZ,nn
-                return call(!zero);
+                return call(!zero, next16());
             case 0xD4: // CALL NC,nn
-                return call(!carry);
+                return call(!carry, next16());
             //case 0xE4: REMOVED OPCODE CALL P
             //case 0xF4: REMOVED OPCODE CALL S
 
             case 0x76: // HALT
-                // Not sure how the HALT bug is supposed to work here
-                if(interrupts)
-                    machine.halt = true;
-                else{
-//                    if((machine.interrupts_fired & machine.interrupts_enabled & 0x1f) != 0){
-//                        halt_bug = true;
-//                    }
-//                    else
-//                        machine.halt = true;
-                    machine.halt = true;
-                    haltBug = true;
-                }
-                return 1;
+                return halt(machine);
             case 0xC6: // ADD A,n
                 return add8RRn(7, -1, false);
             case 0xD6: // SUB A,n
@@ -407,38 +1061,13 @@ public class CPU {
 
             /* 0xX7 */
             case 0x07: // RLCA
-                a <<= 1;
-                carry = a > 0xff;
-                a &= 0xff;
-                a |= carry ? 1 : 0;
-                subtract = half = false;
-                zero = false;
-                return 1;
-            case 0x17: // RLA, treats carry as a buffer-9th bit, in contrast to RLCA above
-                a <<= 1;
-                a += carry ? 1 : 0;
-                carry = a > 0xff;
-                a &= 0xff;
-                subtract = half = false;
-                zero = false;
-                return 1;
+                return rlca();
+            case 0x17: // RLA
+                return rla();
             case 0x27: // DAA
-                int diff = 0;
-                if(((a & 0xf) > 9 && !subtract) || half)
-                    diff |= 0x6;
-                if((a > 0x99) && !subtract || carry) {
-                    diff |= 0x60;
-                    carry = true;
-                }
-                a += subtract ? -diff : diff;
-                a &= 0xff;
-                half = false;
-                zero = a == 0;
-                return 1;
+                return daa();
             case 0x37: // SCF
-                carry = true;
-                subtract = half = false;
-                return 1;
+                return scf();
             case 0xC7: // RST 0x00
                 return rst(0x00);
             case 0xD7: // RST 0x10
@@ -450,42 +1079,28 @@ public class CPU {
 
             /* 0xX8 */
             case 0x08: // LD (nn),SP
-                return storeSp();
+                return storeSp(next16());
             case 0x18: // JR n
-                return jumpRelative(true);
+                return jumpRelative(true, next8());
             case 0x28: // JR Z,n
-                return jumpRelative(zero);
+                return jumpRelative(zero, next8());
             case 0x38: // JR c,n
-                return jumpRelative(carry);
+                return jumpRelative(carry, next8());
             case 0xC8: // RET Z
                 return returnConditional(zero);
             case 0xD8: // RET C
                 return returnConditional(carry);
             case 0xE8: // ADD SP,n (byte)
             {
-                return add16SpImm();
+                return add16SpImm(next8());
             }
             case 0xF8: // LDHL SP,n (byte)
-            {
-                int n = (byte)next8();
-                zero = subtract = false;
-                half  = (sp & 0xf) + (n & 0xf) > 0xf;
-                carry = (sp & 0xff) + (n & 0xff) > 0xff;
-                n += sp;
-                n &= 0xffff;
-                h = n >> 8;
-                l = n & 0xff;
-                return 3;
-            }
+                return ldHlSpImm(next8());
 
             case 0xD9: // RETI
-                lastInt = 0;
-                interrupts = true;
-                /* Fall through */
+                return reti();
             case 0xC9: // RET
-                pc = mmu.read16(sp);
-                sp += 2;
-                return 4;
+                return ret();
             case 0xE9: // JP HL
                 pc = (h << 8) | l;
                 return 1;
@@ -494,12 +1109,12 @@ public class CPU {
                 return 2;
 
             case 0xCA: // JP Z nn
-                return jumpImmediate(zero);
+                return jumpImmediate(zero, next16());
             case 0xDA: // JP C nn
-                return jumpImmediate(carry);
+                return jumpImmediate(carry, next16());
 
             case 0xCB: // CB extra instruction
-                return extraCb(next8());
+                return cbOps[next8()].execute();
             //case 0xDB: REMOVED INSTRUCTION IN A,n
             //case 0xEB: REMOVED INSTRUCTION EX DE,HL
             case 0xFB: // EI
@@ -507,14 +1122,14 @@ public class CPU {
                 return 1;
 
             case 0xCC: // CALL Z nn
-                return call(zero);
+                return call(zero, next16());
             case 0xDC: // CALL C nn
-                return call(carry);
+                return call(carry, next16());
             //case 0xEC REMOVED INSTRUCTION
             //case 0xFC REMOVED INSTRUCTION
 
             case 0xCD: // CALL nn
-                return call(true);
+                return call(true, next16());
 
             //case 0xDD REMOVED IX INSTRUCTIONS
             //case 0xED REMOVED EXTD INSTRUCTIONS
@@ -532,27 +1147,13 @@ public class CPU {
 
             /* 0xXF */
             case 0x0F: // RRCA
-                carry = (a & 1) == 1;
-                half = subtract = false;
-                a >>= 1;
-                a |= carry ? 0x80 : 0;
-                zero = false;
-                return 1;
+                return rrca();
             case 0x1F: // RRA
-                subtract = half = zero = false;
-                if(carry)
-                    a |= 0x100;
-                carry = (a & 1) == 1;
-                a >>= 1;
-                return 1;
+                return rra();
             case 0x2F: // CPL A
-                half = subtract = true;
-                a = (~a) & 0xff;
-                return 1;
+                return cpl();
             case 0x3F: // CCF (or CPL CARRY)
-                carry = !carry;
-                subtract = half = false;
-                return 1;
+                return ccf();
             case 0xCF: // RST 0x08
                 return rst(0x08);
             case 0xDF: // RST 0x18
@@ -562,9 +1163,8 @@ public class CPU {
             case 0xFF: // RST 0x38
                 return rst(0x38);
             default:
-                unimplemented(opcode);
+                return unimplemented(opcode);
         }
-        return 1;
     }
 
     /**
@@ -614,16 +1214,13 @@ public class CPU {
             case 7:
                 a = value & 0xff; break;
             case 8:
-                b = value >> 8;
-                c = value & 0xff;
+                setBc(value);
                 break;
             case 9:
-                d = value >> 8;
-                e = value & 0xff;
+                setDe(value);
                 break;
             case 10:
-                h = value >> 8;
-                l = value & 0xff;
+                setHl(value);
                 break;
             case 11:
                 sp = value;
@@ -632,7 +1229,7 @@ public class CPU {
                 setFlagRegister(value);
                 break;
             case 13: // AF
-                a = value >> 8;
+                a = (value >> 8) & 0xff;
                 setFlagRegister(value & 0xff);
                 break;
             default:
@@ -640,6 +1237,21 @@ public class CPU {
         }
     }
 
+    private void setBc(int value) {
+        b = (value >> 8) & 0xff;
+        c = value & 0xff;
+    }
+
+    private void setDe(int value) {
+        d = (value >> 8) & 0xff;
+        e = value & 0xff;
+    }
+
+    private void setHl(int value) {
+        h = (value >> 8) & 0xff;
+        l = value & 0xff;
+    }
+
     /**
      *
      * @param value Integer flag register value
@@ -686,9 +1298,7 @@ public class CPU {
         throw new IllegalArgumentException(String.format("%d is an invalid register number", id));
     }
 
-    private int add8RRn(int rDst, int rSrc, boolean cyclic) {
-        int dst = getRegister(rDst);
-        int src = getRegister(rSrc);
+    private int add8(int dst, int src, boolean cyclic) {
         int carryBit = (cyclic && carry) ? 1 : 0;
         int sum = dst + src + carryBit;
         subtract = false;
@@ -696,33 +1306,41 @@ public class CPU {
         carry = sum > 0xff;
         sum &= 0xff;
         zero = sum == 0;
-        setRegister(rDst, sum);
-        return (rSrc == 6 || rSrc == -1) ? 2 : 1;
+        return sum;
     }
 
-    private int add16Rp(int rDst, int rSrc) {
+    private int add8RRn(int rDst, int rSrc, boolean cyclic) {
         int dst = getRegister(rDst);
         int src = getRegister(rSrc);
+        setRegister(rDst, add8(dst, src, cyclic));
+        return (rSrc == 6 || rSrc == -1) ? 2 : 1;
+    }
+
+    private int add16(int dst, int src) {
         int sum = dst + src;
         subtract = false;
         carry = sum > 0xffff;
         half = (dst & 0xfff) + (src & 0xfff) > 0xfff;
-        setRegister(rDst, sum & 0xffff);
+        return sum & 0xffff;
+    }
+
+    private int add16Rp(int rDst, int rSrc) {
+        int dst = getRegister(rDst);
+        int src = getRegister(rSrc);
+        setRegister(rDst, add16(dst, src));
         return 2;
     }
 
-    private int add16SpImm() {
+    private int add16SpImm(int operand) {
         zero = subtract = false;
-        int imm = ((byte)next8());
+        int imm = (byte)operand;
         half = (sp & 0xf) + (imm & 0xf) > 0xf;
         carry = (sp & 0xff) + (imm & 0xff) > 0xff;
         sp = (imm + sp) & 0xffff;
         return 4;
     }
 
-    private int sub8RR(int rDst, int rSrc, boolean cyclic, boolean save) {
-        int dst = getRegister(rDst);
-        int src = getRegister(rSrc);
+    private int sub8(int dst, int src, boolean cyclic) {
         int carryBit = (cyclic && carry) ? 1 : 0;
         int sum = dst - src - carryBit;
         subtract = true;
@@ -730,48 +1348,78 @@ public class CPU {
         carry = sum < 0;
         sum &= 0xff;
         zero = sum == 0;
+        return sum;
+    }
+
+    private int sub8RR(int rDst, int rSrc, boolean cyclic, boolean save) {
+        int dst = getRegister(rDst);
+        int src = getRegister(rSrc);
+        int sum = sub8(dst, src, cyclic);
         if (save) {
             setRegister(rDst, sum);
         }
         return (rSrc == 6 || rSrc == -1) ? 2 : 1;
     }
 
-    private int andXor8RRn(int rDst, int rSrc, boolean xor) {
-        int dst = getRegister(rDst);
-        int src = getRegister(rSrc);
-        int result = xor ? (dst ^ src) : (dst & src);
+    private int and8(int dst, int src) {
+        int result = dst & src;
         subtract = carry = false;
-        half = !xor;
+        half = true;
         zero = result == 0;
-        setRegister(rDst, result);
-        return (rSrc == 6 || rSrc == -1) ? 2 : 1;
+        return result;
     }
 
-    private int or8RRn(int rDst, int rSrc) {
+    private int xor8(int dst, int src) {
+        int result = dst ^ src;
+        subtract = carry = half = false;
+        zero = result == 0;
+        return result;
+    }
+
+    private int andXor8RRn(int rDst, int rSrc, boolean xor) {
         int dst = getRegister(rDst);
         int src = getRegister(rSrc);
+        setRegister(rDst, xor ? xor8(dst, src) : and8(dst, src));
+        return (rSrc == 6 || rSrc == -1) ? 2 : 1;
+    }
+
+    private int or8(int dst, int src) {
         int result = dst | src;
         subtract = carry = half = false;
         zero = result == 0;
-        setRegister(rDst, result);
+        return result;
+    }
+
+    private int or8RRn(int rDst, int rSrc) {
+        int dst = getRegister(rDst);
+        int src = getRegister(rSrc);
+        setRegister(rDst, or8(dst, src));
         return (rSrc == 6 || rSrc == -1) ? 2 : 1;
     }
 
-    private int inc8(int r) {
-        int val = (getRegister(r) + 1) & 0xff;
+    private int inc(int value) {
+        int val = (value + 1) & 0xff;
         subtract = false;
         zero = val == 0;
         half = (val & 0xf) == 0;
-        setRegister(r, val);
+        return val;
+    }
+
+    private int inc8(int r) {
+        setRegister(r, inc(getRegister(r)));
         return (r == 6) ? 3 : 1;
     }
 
-    private int dec8(int r) {
-        int val = (getRegister(r) - 1) & 0xff;
+    private int dec(int value) {
+        int val = (value - 1) & 0xff;
         subtract = true;
         zero = val == 0;
         half = (val & 0xf) == 0xf;
-        setRegister(r, val);
+        return val;
+    }
+
+    private int dec8(int r) {
+        setRegister(r, dec(getRegister(r)));
         return (r == 6) ? 3 : 1;
     }
 
@@ -832,8 +1480,8 @@ public class CPU {
         return 2;
     }
 
-    private int ldShadow(boolean store) {
-        int addr = next8() + 0xff00;
+    private int ldShadow(boolean store, int operand) {
+        int addr = operand + 0xff00;
         if (store) {
             int src = getRegister(7);
             mmu.write8(addr, src);
@@ -851,28 +1499,30 @@ public class CPU {
         return 3;
     }
 
-    private int storeSp() {
-        int addr = next16();
+    private int storeSp(int addr) {
         mmu.write16(addr, sp);
         return 5;
     }
 
     private int push16(int r) {
-        int src = getRegister(r);
-        sp -= 2;
-        mmu.write16(sp, src);
+        return push(getRegister(r));
+    }
+
+    private int push(int value) {
+        sp = (sp - 2) & 0xffff;
+        mmu.write16(sp, value);
         return 4;
     }
 
     private int pop16(int r) {
         int src = mmu.read16(sp);
-        sp += 2;
+        sp = (sp + 2) & 0xffff;
         setRegister(r, src);
         return 3;
     }
 
-    private int jumpRelative(boolean condition) {
-        byte offset = (byte)next8();
+    private int jumpRelative(boolean condition, int operand) {
+        byte offset = (byte)operand;
         if (condition) {
             pc += offset;
             return 3;
@@ -880,8 +1530,7 @@ public class CPU {
         return 2;
     }
 
-    private int jumpImmediate(boolean condition) {
-        int target = next16();
+    private int jumpImmediate(boolean condition, int target) {
         if (condition) {
             pc = target;
             return 4;
@@ -889,10 +1538,9 @@ public class CPU {
         return 3;
     }
 
-    private int call(boolean condition) {
-        int target = next16();
+    private int call(boolean condition, int target) {
         if (condition) {
-            sp -= 2;
+            sp = (sp - 2) & 0xffff;
             mmu.write16(sp, pc);
             pc = target;
             return 6;
@@ -903,19 +1551,143 @@ public class CPU {
     private int returnConditional(boolean condition) {
         if (condition) {
             pc = mmu.read16(sp);
-            sp += 2;
+            sp = (sp + 2) & 0xffff;
             return 5;
         }
         return 2;
     }
 
     private int rst(int address) {
-        sp -= 2;
+        sp = (sp - 2) & 0xffff;
         mmu.write16(sp, pc);
         pc = address;
         return 4;
     }
 
+    private int ret() {
+        pc = mmu.read16(sp);
+        sp = (sp + 2) & 0xffff;
+        return 4;
+    }
+
+    private int reti() {
+        lastInt = 0;
+        interrupts = true;
+        return ret();
+    }
+
+    private int ldHlSpImm(int operand) {
+        int n = (byte)operand;
+        zero = subtract = false;
+        half  = (sp & 0xf) + (n & 0xf) > 0xf;
+        carry = (sp & 0xff) + (n & 0xff) > 0xff;
+        n += sp;
+        n &= 0xffff;
+        h = n >> 8;
+        l = n & 0xff;
+        return 3;
+    }
+
+    private int stop(Machine machine) {
+        if (mmu.pendingSpeedSwitch) {
+            if (machine.trySpeedSwitch()) {
+                mmu.pendingSpeedSwitch = false;
+            }
+        }
+        else {
+            machine.stop = true;
+        }
+        return 1;
+    }
+
+    private int halt(Machine machine) {
+        // Not sure how the HALT bug is supposed to work here
+        if(interrupts)
+            machine.halt = true;
+        else{
+//            if((machine.interrupts_fired & machine.interrupts_enabled & 0x1f) != 0){
+//                halt_bug = true;
+//            }
+//            else
+//                machine.halt = true;
+            machine.halt = true;
+            haltBug = true;
+        }
+        return 1;
+    }
+
+    private int rlca() {
+        a <<= 1;
+        carry = a > 0xff;
+        a &= 0xff;
+        a |= carry ? 1 : 0;
+        subtract = half = false;
+        zero = false;
+        return 1;
+    }
+
+    // Treats carry as a buffer-9th bit, in contrast to RLCA above
+    private int rla() {
+        a <<= 1;
+        a += carry ? 1 : 0;
+        carry = a > 0xff;
+        a &= 0xff;
+        subtract = half = false;
+        zero = false;
+        return 1;
+    }
+
+    private int rrca() {
+        carry = (a & 1) == 1;
+        half = subtract = false;
+        a >>= 1;
+        a |= carry ? 0x80 : 0;
+        zero = false;
+        return 1;
+    }
+
+    private int rra() {
+        subtract = half = zero = false;
+        if(carry)
+            a |= 0x100;
+        carry = (a & 1) == 1;
+        a >>= 1;
+        return 1;
+    }
+
+    private int daa() {
+        int diff = 0;
+        if(((a & 0xf) > 9 && !subtract) || half)
+            diff |= 0x6;
+        if((a > 0x99) && !subtract || carry) {
+            diff |= 0x60;
+            carry = true;
+        }
+        a += subtract ? -diff : diff;
+        a &= 0xff;
+        half = false;
+        zero = a == 0;
+        return 1;
+    }
+
+    private int cpl() {
+        half = subtract = true;
+        a = (~a) & 0xff;
+        return 1;
+    }
+
+    private int scf() {
+        carry = true;
+        subtract = half = false;
+        return 1;
+    }
+
+    private int ccf() {
+        carry = !carry;
+        subtract = half = false;
+        return 1;
+    }
+
     private int rlc(int reg){
         reg <<= 1;
         carry = reg > 0xff;
@@ -994,78 +1766,6 @@ public class CPU {
         zero = (reg & (1 << bit)) == 0;
     }
 
-    private int set(int reg, int bit){
-        return reg | (1 << bit);
-    }
-
-    private int reset(int reg, int bit){
-        return reg & ~(1 << bit);
-    }
-
-    private int extraCb(int opcode){
-        int register = opcode & 0x7;
-        int operation = opcode & 0xf8;
-        int longCycles = 4;
-        switch(operation){
-            case 0x00: //RLC
-                setRegister(register, rlc(getRegister(register)));
-                break;
-            case 0x08: //RRC
-                setRegister(register, rrc(getRegister(register)));
-                break;
-            case 0x10: //RL
-                setRegister(register, rotl(getRegister(register)));
-                break;
-            case 0x18: //RL
-                setRegister(register, rotr(getRegister(register)));
-                break;
-            case 0x20: //SHL
-                setRegister(register, shl(getRegister(register)));
-                break;
-            case 0x28: //SHAR
-                setRegister(register, shar(getRegister(register)));
-                break;
-            case 0x30: //SWAP
-                setRegister(register, swap(getRegister(register)));
-                break;
-            case 0x38: //SHR
-                setRegister(register, shr(getRegister(register)));
-                break;
-            case 0x40:
-            case 0x48:
-            case 0x50:
-            case 0x58:
-            case 0x60:
-            case 0x68:
-            case 0x70:
-            case 0x78:
-                longCycles = 3;
-                bit(getRegister(register), (operation - 0x40) >> 3);
-                break;
-            case 0x80:
-            case 0x88:
-            case 0x90:
-            case 0x98:
-            case 0xA0:
-            case 0xA8:
-            case 0xB0:
-            case 0xB8:
-                setRegister(register, reset(getRegister(register), (operation - 0x80) >> 3));
-                break;
-            case 0xC0:
-            case 0xC8:
-            case 0xD0:
-            case 0xD8:
-            case 0xE0:
-            case 0xE8:
-            case 0xF0:
-            case 0xF8:
-                setRegister(register, set(getRegister(register), (operation - 0xC0) >> 3));
-                break;
-        }
-        return (register == 6) ? longCycles : 2;
-    }
-
     /**
      * Save state of CPU
      * @param dos Destination stream
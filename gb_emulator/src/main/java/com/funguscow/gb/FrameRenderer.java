@@ -0,0 +1,795 @@
+package com.funguscow.gb;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Composes the pixels of each line from its own copy of VRAM, OAM and the resolved palettes
+ * The GPU feeds it every change to those along with the registers of each line drawn, so
+ * it can either compose lines as they come or replay a whole frame's log on a worker thread
+ * while the next frame is being emulated, with identical results
+ */
+final class FrameRenderer {
+
+    private static final int TILES_PER_BANK = 0x1800 >> 4;
+    private static final int SCREEN_WIDTH = GPU.SCREEN_WIDTH, SCREEN_HEIGHT = GPU.SCREEN_HEIGHT;
+
+    // Log entries, the kind in the top 4 bits of the first int
+    private static final int LOG_VRAM = 1, LOG_OAM = 2, LOG_BG_COLORS = 3, LOG_OB_COLORS = 4, LOG_LINE = 5, LOG_LAYER_CACHE = 6;
+
+    /**
+     * Changes and lines of one frame, queued for the worker thread
+     */
+    private static class RenderLog {
+        int[] data = new int[0x1000];
+        int size;
+        GPU.GameboyScreen screen; // Where to show the frame, or null if it was skipped
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+    }
+
+    private static final RenderLog STOP = new RenderLog();
+    // Hand off a log early if it grows this long, e.g. with the LCD off there are no frames
+    private static final int MAX_LOG_SIZE = 1 << 20;
+
+    private final boolean cgb, compatibility;
+
+    private final byte[] vram;
+    // Palette indices of every tile's pixels, 64 per tile, decoded from vram as it is written
+    private final byte[] tiles, flippedTiles;
+    private final byte[] oam = new byte[0xa0];
+    private final GPU.SpriteAttrib[] attribs = new GPU.SpriteAttrib[40];
+    private final int[] bgColors = new int[4 * 8], obColors = new int[4 * 8];
+
+    private final int[] spriteOrder = new int[40]; // OAM indices in drawing priority order
+    private final int[][] lineSprites = new int[SCREEN_HEIGHT][10]; // Sprites selected on each line, in priority order
+    private final int[] lineSpriteCounts = new int[SCREEN_HEIGHT];
+    private boolean spriteOrderDirty = true, lineSpritesDirty = true;
+    private boolean tallSprites, oamPosOrder; // As of the last line drawn
+
+    // Optional cache of both tile maps drawn out as 256x256 layers, for each tile data addressing mode.
+    // A pixel is its palette index, CGB palette << 2 and LAYER_PRIORITY, so that the low 5 bits index bgColors
+    private static final int LAYER_PRIORITY = 0x20;
+    private byte[][] layers;
+    private int[][] cellMapVersions, cellTiles, cellTileVersions; // What each 8x8 cell of a layer was drawn from
+    private final int[] tileVersions, mapVersions = new int[0x800];
+
+    // Per pixel of the current line, the BG/window color index and flags below
+    private final byte[] lineZ = new byte[SCREEN_WIDTH];
+    private static final int Z_COLOR = 3, Z_BG_PRIORITY = 4, Z_SPRITE = 8;
+    private final int[] frameBuffer = new int[SCREEN_WIDTH * SCREEN_HEIGHT];
+
+    // What each line of frameBuffer was composed from, to skip lines that would come out the same
+    private int version; // Changes whenever VRAM or the palette colors change
+    private final int[] lineVersions = new int[SCREEN_HEIGHT];
+    private final int[] lineModes = new int[SCREEN_HEIGHT], linePositions = new int[SCREEN_HEIGHT];
+    private final boolean[] lineDirty = new boolean[SCREEN_HEIGHT]; // Set when a sprite on the line changes
+    private boolean frameChanged = true; // Whether any line was composed since a frame was last shown
+
+    // Only while rendering on a worker thread
+    private RenderLog log;
+    private BlockingQueue<RenderLog> pending, free;
+    private Thread worker;
+
+    /**
+     *
+     * @param vramSize Size of VRAM including all banks
+     * @param cgb True for gameboy color mode
+     * @param compatibility True for monochrome compatibility mode on gameboy color
+     */
+    FrameRenderer(int vramSize, boolean cgb, boolean compatibility) {
+        this.cgb = cgb;
+        this.compatibility = compatibility;
+        vram = new byte[vramSize];
+        tiles = new byte[(vramSize / GPU.VRAM_SIZE) * TILES_PER_BANK * 64];
+        flippedTiles = new byte[tiles.length];
+        tileVersions = new int[tiles.length >> 6];
+        for (int i = 0; i < 40; i++) {
+            attribs[i] = new GPU.SpriteAttrib();
+            spriteOrder[i] = i;
+        }
+        Arrays.fill(lineDirty, true);
+    }
+
+    /**
+     * Start or stop composing frames on a worker thread
+     * When stopping, any frame already handed off is finished first
+     * @param threaded True to render on a worker thread
+     */
+    void setThreaded(boolean threaded) {
+        if (threaded == (worker != null)) {
+            return;
+        }
+        if (threaded) {
+            log = new RenderLog();
+            pending = new LinkedBlockingQueue<>();
+            free = new LinkedBlockingQueue<>();
+            free.add(new RenderLog());
+            worker = new Thread(this::work, "GPU renderer");
+            worker.setDaemon(true);
+            worker.start();
+        } else {
+            RenderLog last = log;
+            pending.add(last); // Apply what this frame has logged so far, without showing anything
+            pending.add(STOP);
+            boolean interrupted = false;
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            worker = null;
+            log = null;
+            pending = free = null;
+        }
+    }
+
+    /**
+     * Worker thread loop, replaying each frame's log and showing the frame
+     */
+    private void work() {
+        while (true) {
+            RenderLog frame;
+            try {
+                frame = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (frame == STOP) {
+                return;
+            }
+            try {
+                replay(frame);
+                show(frame.screen);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            frame.size = 0;
+            frame.screen = null;
+            free.add(frame);
+        }
+    }
+
+    /**
+     * Apply every entry of a log in order
+     * @param frame Log to replay
+     */
+    private void replay(RenderLog frame) {
+        int[] data = frame.data;
+        int i = 0;
+        while (i < frame.size) {
+            int entry = data[i++];
+            switch (entry >>> 28) {
+                case LOG_VRAM:
+                    applyVram((entry >> 8) & 0xffff, entry & 0xff);
+                    break;
+                case LOG_OAM:
+                    applyOam((entry >> 8) & 0xff, entry & 0xff);
+                    break;
+                case LOG_BG_COLORS:
+                    applyColors(data, i, bgColors);
+                    i += bgColors.length;
+                    break;
+                case LOG_OB_COLORS:
+                    applyColors(data, i, obColors);
+                    i += obColors.length;
+                    break;
+                case LOG_LAYER_CACHE:
+                    applyLayerCache((entry & 1) != 0);
+                    break;
+                case LOG_LINE: {
+                    int lcdc = data[i++];
+                    int scroll = data[i++];
+                    int window = data[i++];
+                    composeLine(entry & 0xff, (entry >> 8) & 0xff, lcdc & 0xff, (lcdc & 0x100) != 0,
+                            scroll & 0xff, scroll >> 8, window & 0xff, window >> 8);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a memory write to the log
+     * @param entry Log entry
+     */
+    private void log(int entry) {
+        if (log.size >= MAX_LOG_SIZE) {
+            endFrame(null);
+        }
+        log.add(entry);
+    }
+
+    /**
+     * Turn the background layer cache on or off, from the next line logged
+     * @param enabled True to draw the background and window from the layer cache
+     */
+    void setLayerCache(boolean enabled) {
+        if (log != null) {
+            log.add((LOG_LAYER_CACHE << 28) | (enabled ? 1 : 0));
+        } else {
+            applyLayerCache(enabled);
+        }
+    }
+
+    /**
+     * Record a write to VRAM
+     * @param address Index into vram
+     * @param value Byte written
+     */
+    void writeVram(int address, int value) {
+        if (log != null) {
+            log((LOG_VRAM << 28) | (address << 8) | (value & 0xff));
+        } else {
+            applyVram(address, value);
+        }
+    }
+
+    /**
+     * Record a write to OAM
+     * @param offset Offset into OAM, below 0xa0
+     * @param value Byte written
+     */
+    void writeOam(int offset, int value) {
+        if (log != null) {
+            log((LOG_OAM << 28) | (offset << 8) | (value & 0xff));
+        } else {
+            applyOam(offset, value);
+        }
+    }
+
+    /**
+     * Record new resolved background colors
+     * @param colors RGB888 color of each palette entry, 4 per palette
+     */
+    void setBgColors(int[] colors) {
+        if (log != null) {
+            log.add(LOG_BG_COLORS << 28);
+            for (int color : colors) {
+                log.add(color);
+            }
+        } else {
+            applyColors(colors, 0, bgColors);
+        }
+    }
+
+    /**
+     * Record new resolved sprite colors
+     * @param colors RGB888 color of each palette entry, 4 per palette
+     */
+    void setObColors(int[] colors) {
+        if (log != null) {
+            log.add(LOG_OB_COLORS << 28);
+            for (int color : colors) {
+                log.add(color);
+            }
+        } else {
+            applyColors(colors, 0, obColors);
+        }
+    }
+
+    /**
+     * Compose a line, or log it to be composed
+     * @param line Line being drawn
+     * @param windowLine Internal window line counter
+     * @param lcdc Value of the LCDC register
+     * @param oamPosOrder CGB OPRI flag
+     * @param scrollX SCX
+     * @param scrollY SCY
+     * @param windowX WX
+     * @param windowY WY
+     */
+    void renderLine(int line, int windowLine, int lcdc, boolean oamPosOrder, int scrollX, int scrollY, int windowX, int windowY) {
+        if (log != null) {
+            log.add((LOG_LINE << 28) | (windowLine << 8) | line);
+            log.add(lcdc | (oamPosOrder ? 0x100 : 0));
+            log.add(scrollX | (scrollY << 8));
+            log.add(windowX | (windowY << 8));
+        } else {
+            composeLine(line, windowLine, lcdc, oamPosOrder, scrollX, scrollY, windowX, windowY);
+        }
+    }
+
+    /**
+     * Finish the current frame, showing it on a screen or not
+     * @param screen Screen to show the frame on, or null if it was not rendered
+     */
+    void endFrame(GPU.GameboyScreen screen) {
+        if (log == null) {
+            show(screen);
+            return;
+        }
+        log.screen = screen;
+        pending.add(log);
+        boolean interrupted = false;
+        log = null;
+        while (log == null) {
+            try {
+                log = free.take(); // Waits for the worker to finish the frame before
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hand the frame buffer to a screen, telling it whether anything changed since the last frame it was given
+     * @param screen Screen to show the frame on, or null if it was not rendered
+     */
+    private void show(GPU.GameboyScreen screen) {
+        if (screen == null) {
+            return;
+        }
+        if (frameChanged) {
+            screen.drawFrame(frameBuffer);
+        } else {
+            screen.drawUnchangedFrame(frameBuffer);
+        }
+        frameChanged = false;
+    }
+
+    /**
+     *
+     * @param address Index into vram
+     * @param value Byte written
+     */
+    private void applyVram(int address, int value) {
+        if (vram[address] == (byte) value) {
+            return;
+        }
+        vram[address] = (byte) value;
+        version++;
+        if ((address & 0x1fff) < 0x1800) {
+            decodeTileRow(address);
+        } else {
+            mapVersions[address & 0x7ff]++;
+        }
+    }
+
+    /**
+     *
+     * @param offset Offset into OAM
+     * @param value Byte written
+     */
+    private void applyOam(int offset, int value) {
+        if (oam[offset] == (byte) value) {
+            return;
+        }
+        oam[offset] = (byte) value;
+        int field = offset & 3;
+        GPU.SpriteAttrib sprite = attribs[offset >> 2];
+        markSpriteLines(sprite.y);
+        sprite.write(field, value, cgb);
+        if (field == 0) {
+            markSpriteLines(sprite.y);
+            lineSpritesDirty = true;
+        } else if (field == 1) {
+            spriteOrderDirty = lineSpritesDirty = true;
+        }
+    }
+
+    /**
+     * Mark the lines a sprite could cover as needing to be composed again
+     * @param y Y position of the sprite as stored in OAM
+     */
+    private void markSpriteLines(int y) {
+        int end = Math.min(SCREEN_HEIGHT, y);
+        for (int l = Math.max(0, y - 16); l < end; l++) {
+            lineDirty[l] = true;
+        }
+    }
+
+    /**
+     *
+     * @param source Array holding the new colors
+     * @param offset Start of the colors in source
+     * @param colors Palette colors to update
+     */
+    private void applyColors(int[] source, int offset, int[] colors) {
+        for (int i = 0; i < colors.length; i++) {
+            if (colors[i] != source[offset + i]) {
+                System.arraycopy(source, offset, colors, 0, colors.length);
+                version++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Update the decoded pixels of one row of a tile
+     * @param address Index into vram of either byte of the row
+     */
+    private void decodeTileRow(int address) {
+        address &= ~1;
+        int low = vram[address];
+        int high = vram[address + 1];
+        int rowStart = ((address >> 13) * TILES_PER_BANK + ((address & 0x1fff) >> 4)) << 6 | ((address >> 1) & 7) << 3;
+        for (int x = 0; x < 8; x++) {
+            int bit = 7 - x;
+            byte pixel = (byte) (((low >> bit) & 1) | (((high >> bit) & 1) << 1));
+            tiles[rowStart + x] = pixel;
+            flippedTiles[rowStart + 7 - x] = pixel;
+        }
+        tileVersions[rowStart >> 6]++;
+    }
+
+    /**
+     *
+     * @param enabled True to allocate the layer cache, false to drop it
+     */
+    private void applyLayerCache(boolean enabled) {
+        if (!enabled) {
+            layers = null;
+            cellMapVersions = cellTiles = cellTileVersions = null;
+        } else if (layers == null) {
+            layers = new byte[4][256 * 256];
+            cellMapVersions = new int[4][32 * 32];
+            cellTiles = new int[4][32 * 32];
+            cellTileVersions = new int[4][32 * 32];
+            for (int[] versions : cellMapVersions) {
+                Arrays.fill(versions, -1);
+            }
+        }
+    }
+
+    /**
+     * Draw a cell of a layer again if its tile map entry or tile has changed since it was drawn
+     * @param layer 1 for the high tile map, plus 2 for signed tile numbers
+     * @param cell Index of the cell within the map
+     */
+    private void updateLayerCell(int layer, int cell) {
+        int mapCell = ((layer & 1) << 10) | cell;
+        if (cellMapVersions[layer][cell] == mapVersions[mapCell]
+                && cellTileVersions[layer][cell] == tileVersions[cellTiles[layer][cell]]) {
+            return;
+        }
+        int tileNum = vram[0x1800 | mapCell] & 0xff;
+        int attribute = cgb ? vram[0x3800 | mapCell] : 0;
+        int tileIndex = (layer & 2) != 0 ? 0x100 + (byte) tileNum : tileNum;
+        if ((attribute & 0x8) != 0) {
+            tileIndex += TILES_PER_BANK;
+        }
+        byte[] tilePixels = (attribute & 0x20) != 0 ? flippedTiles : tiles;
+        boolean flipY = (attribute & 0x40) != 0;
+        int flags = ((attribute & 7) << 2) | ((attribute & 0x80) != 0 ? LAYER_PRIORITY : 0);
+        byte[] pixels = layers[layer];
+        int start = ((cell >> 5) << 11) | ((cell & 31) << 3);
+        for (int row = 0; row < 8; row++) {
+            int rowStart = (tileIndex << 6) | ((flipY ? 7 - row : row) << 3);
+            for (int x = 0; x < 8; x++) {
+                pixels[start + (row << 8) + x] = (byte) (tilePixels[rowStart + x] | flags);
+            }
+        }
+        cellMapVersions[layer][cell] = mapVersions[mapCell];
+        cellTiles[layer][cell] = tileIndex;
+        cellTileVersions[layer][cell] = tileVersions[tileIndex];
+    }
+
+    /**
+     * Draw the background of a line from the layer cache
+     * @param line Line being drawn
+     * @param layer Layer holding the background
+     * @param scrollX SCX
+     * @param scrollY SCY
+     */
+    private void drawCachedBackground(int line, int layer, int scrollX, int scrollY) {
+        int y = (line + scrollY) & 255;
+        int cellRow = (y >> 3) << 5;
+        for (int tx = 0; tx < 21; tx++) {
+            updateLayerCell(layer, cellRow | (((scrollX >> 3) + tx) & 31));
+        }
+        byte[] pixels = layers[layer];
+        int rowStart = y << 8;
+        for (int screenX = 0; screenX < SCREEN_WIDTH; screenX++) {
+            int pixel = pixels[rowStart | ((scrollX + screenX) & 255)];
+            int palid = pixel & 3;
+            frameBuffer[line * SCREEN_WIDTH + screenX] = bgColors[pixel & 0x1f];
+            if ((pixel & LAYER_PRIORITY) != 0 && palid != 0) {
+                lineZ[screenX] = (byte) (Z_BG_PRIORITY | palid);
+            } else {
+                lineZ[screenX] = (byte) palid;
+            }
+        }
+    }
+
+    /**
+     * Draw the window over a line from the layer cache
+     * @param line Line being drawn
+     * @param layer Layer holding the window
+     * @param wline Line of the window being drawn
+     * @param windowX WX
+     */
+    private void drawCachedWindow(int line, int layer, int wline, int windowX) {
+        int startX = Math.max(0, windowX - 7);
+        if (startX >= SCREEN_WIDTH) {
+            return;
+        }
+        int cellRow = (wline >> 3) << 5;
+        int endCell = (SCREEN_WIDTH - 1 + 7 - windowX) >> 3;
+        for (int tx = (startX + 7 - windowX) >> 3; tx <= endCell; tx++) {
+            updateLayerCell(layer, cellRow | tx);
+        }
+        byte[] pixels = layers[layer];
+        int rowStart = (wline << 8) + 7 - windowX;
+        for (int screenX = startX; screenX < SCREEN_WIDTH; screenX++) {
+            int pixel = pixels[rowStart + screenX];
+            int palid = pixel & 3;
+            frameBuffer[line * SCREEN_WIDTH + screenX] = bgColors[pixel & 0x1f];
+            if ((pixel & LAYER_PRIORITY) != 0 && palid != 0) {
+                lineZ[screenX] = (byte) (Z_BG_PRIORITY | palid);
+            } else {
+                lineZ[screenX] |= palid;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param index OAM position of a sprite
+     * @return Value ordering sprites by X position, then OAM position
+     */
+    private int spriteSortKey(int index) {
+        return (attribs[index].x << 6) | index;
+    }
+
+    /**
+     * Select the sprites drawn on each line, the first 10 overlapping it in priority order
+     * Priority is by X position, or by OAM position for CGB unless the CGB has been told otherwise,
+     * with ties going to the lower OAM position
+     */
+    private void updateLineSprites() {
+        if (spriteOrderDirty) {
+            if (cgb && !oamPosOrder) {
+                for (int i = 0; i < spriteOrder.length; i++) {
+                    spriteOrder[i] = i;
+                }
+            } else { // Insertion sort from the last order, as usually few sprites have moved past each other
+                for (int i = 1; i < spriteOrder.length; i++) {
+                    int index = spriteOrder[i];
+                    int key = spriteSortKey(index);
+                    int j = i - 1;
+                    for (; j >= 0 && spriteSortKey(spriteOrder[j]) > key; j--) {
+                        spriteOrder[j + 1] = spriteOrder[j];
+                    }
+                    spriteOrder[j + 1] = index;
+                }
+            }
+            spriteOrderDirty = false;
+        }
+        Arrays.fill(lineSpriteCounts, 0);
+        int height = tallSprites ? 16 : 8;
+        for (int index : spriteOrder) {
+            int y0 = attribs[index].y - 16;
+            int end = Math.min(SCREEN_HEIGHT, y0 + height);
+            for (int l = Math.max(0, y0); l < end; l++) {
+                if (lineSpriteCounts[l] < 10) {
+                    lineSprites[l][lineSpriteCounts[l]++] = index;
+                }
+            }
+        }
+        lineSpritesDirty = false;
+    }
+
+    /**
+     * Draw one line into the frame buffer
+     * @param line Line being drawn
+     * @param windowLine Internal window line counter
+     * @param lcdc Value of the LCDC register
+     * @param oamPosOrder CGB OPRI flag
+     * @param scrollX SCX
+     * @param scrollY SCY
+     * @param windowX WX
+     * @param windowY WY
+     */
+    private void composeLine(int line, int windowLine, int lcdc, boolean oamPosOrder, int scrollX, int scrollY, int windowX, int windowY) {
+        boolean windowMapHigh = (lcdc & 0x40) != 0;
+        boolean windowOn = (lcdc & 0x20) != 0;
+        boolean bgTileHigh = (lcdc & 0x10) == 0;
+        boolean bgMapHigh = (lcdc & 0x8) != 0;
+        boolean tallSprites = (lcdc & 0x4) != 0;
+        boolean spritesOn = (lcdc & 0x2) != 0;
+        boolean bgOn = (lcdc & 0x1) != 0;
+        if (tallSprites != this.tallSprites) {
+            this.tallSprites = tallSprites;
+            lineSpritesDirty = true;
+        }
+        if (oamPosOrder != this.oamPosOrder) {
+            this.oamPosOrder = oamPosOrder;
+            spriteOrderDirty = lineSpritesDirty = true;
+        }
+        int mode = lcdc | (oamPosOrder ? 0x100 : 0) | (windowLine << 16);
+        int position = scrollX | (scrollY << 8) | (windowX << 16) | (windowY << 24);
+        if (!lineDirty[line] && lineVersions[line] == version && lineModes[line] == mode && linePositions[line] == position) {
+            return; // Would come out exactly as it already is
+        }
+        lineDirty[line] = false;
+        lineVersions[line] = version;
+        lineModes[line] = mode;
+        linePositions[line] = position;
+        frameChanged = true;
+        Arrays.fill(lineZ, (byte) 0);
+        if(bgOn || (cgb && !compatibility)){ // Bit 0 of LCDC is different in CGB
+            int tiledataBase = bgTileHigh ? 0x1000 : 0x0000;
+            // Draw Background
+            if (layers != null) {
+                drawCachedBackground(line, (bgMapHigh ? 1 : 0) | (bgTileHigh ? 2 : 0), scrollX, scrollY);
+            } else {
+                int tilemapBase = bgMapHigh ? 0x1c00 : 0x1800;
+                int ty = line + scrollY;
+                int mty = ty >> 3;
+                mty &= 31;
+                ty &= 7;
+                for (int tx = 0; tx < 21; tx++) {
+                    int mtx = ((tx << 3) + scrollX) >> 3;
+                    mtx &= 31;
+
+                    // Index into tile map
+                    int tileNum = vram[tilemapBase + mty * 32 + mtx] & 0xff;
+
+                    // CGB attributes
+                    boolean flipX = false, flipY = false, bgPriority = false, highVramBank = false;
+                    int cgbPalette = 0;
+                    if (cgb) {
+                        int attribute = vram[tilemapBase + mty * 32 + mtx + 0x2000];
+                        bgPriority = (attribute & 0x80) != 0;
+                        flipY = (attribute & 0x40) != 0;
+                        flipX = (attribute & 0x20) != 0;
+                        highVramBank = (attribute & 0x8) != 0;
+                        cgbPalette = attribute & 7;
+                    }
+
+                    if (bgTileHigh) tileNum = (byte)tileNum;
+                    int rowY = ty;
+                    if (flipY)
+                        rowY = 7 - rowY;
+                    int tileIndex = (tiledataBase >> 4) + tileNum;
+                    if (highVramBank)
+                        tileIndex += TILES_PER_BANK;
+                    byte[] tilePixels = flipX ? flippedTiles : tiles;
+                    int rowStart = (tileIndex << 6) | (rowY << 3);
+                    for (int x = 0; x < 8; x++) {
+                        int screenX = x - (scrollX & 7) + tx * 8;
+                        if (screenX < 0) {
+                            continue;
+                        }
+                        if (screenX >= SCREEN_WIDTH) {
+                            break;
+                        }
+                        int palid = tilePixels[rowStart + x];
+                        frameBuffer[line * SCREEN_WIDTH + screenX] = bgColors[cgbPalette * 4 + palid];
+                        if (bgPriority && palid != 0) {
+                            lineZ[screenX] = (byte) (Z_BG_PRIORITY | palid);
+                        } else {
+                            lineZ[screenX] = (byte) palid;
+                        }
+                    }
+                }
+            }
+            // Draw window
+            if(windowOn && windowX >= 0 && windowY >= 0 && windowX <= 166 && windowY <= 143){
+                int tilemapBase = windowMapHigh ? 0x1c00 : 0x1800;
+                int wline = windowLine - windowY;
+                int mty = wline >> 3;
+                int ty = wline & 7;
+                if (wline >= 0 && layers != null) {
+                    drawCachedWindow(line, (windowMapHigh ? 1 : 0) | (bgTileHigh ? 2 : 0), wline, windowX);
+                } else if(wline >= 0){
+                    for(int tx = 0; tx < 21; tx ++){
+                        int index = tilemapBase + mty * 32 + tx;
+                        if (index >= GPU.VRAM_SIZE) {
+                            continue;
+                        }
+                        int tileNum = vram[index] & 0xff;
+
+                        // CGB attributes
+                        boolean flipX = false, flipY = false, bgPriority = false, highVramBank = false;
+                        int cgbPalette = 0;
+                        if (cgb) {
+                            int attribute = vram[index + 0x2000];
+                            bgPriority = (attribute & 0x80) != 0;
+                            flipY = (attribute & 0x40) != 0;
+                            flipX = (attribute & 0x20) != 0;
+                            highVramBank = (attribute & 0x8) != 0;
+                            cgbPalette = attribute & 7;
+                        }
+
+                        if(bgTileHigh) tileNum = (byte)tileNum;
+                        int rowY = ty;
+                        if (flipY)
+                            rowY = 7 - rowY;
+                        int tileIndex = (tiledataBase >> 4) + tileNum;
+                        if (highVramBank)
+                            tileIndex += TILES_PER_BANK;
+                        byte[] tilePixels = flipX ? flippedTiles : tiles;
+                        int rowStart = (tileIndex << 6) | (rowY << 3);
+
+                        for(int x = 0; x < 8; x++){
+                            int screenX = x - 7 + tx * 8 + windowX;
+                            if(screenX < 0 || screenX >= 160) {
+                                continue; // Off-screen
+                            }
+                            int palid = tilePixels[rowStart + x];
+                            frameBuffer[line * SCREEN_WIDTH + screenX] = bgColors[cgbPalette * 4 + palid];
+                            if (bgPriority && palid != 0) {
+                                lineZ[screenX] = (byte) (Z_BG_PRIORITY | palid);
+                            } else {
+                                lineZ[screenX] |= palid;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        // Draw sprites (something still isn't right here)
+        if (spritesOn) {
+            int height = tallSprites ? 16 : 8;
+            if (lineSpritesDirty) {
+                updateLineSprites();
+            }
+            int[] selected = lineSprites[line];
+            for (int i = 0; i < lineSpriteCounts[line]; i++) {
+                GPU.SpriteAttrib sprite = attribs[selected[i]];
+                int y0 = sprite.y - 16;
+                int x0 = sprite.x - 8;
+                if (x0 + 8 <= 0 || x0 >= SCREEN_WIDTH) {
+                    continue;
+                }
+                int pattern = sprite.pattern;
+                if (tallSprites) {
+                    pattern &= ~1;
+                }
+                int spriteY = line - y0;
+                if (sprite.yFlip) {
+                    spriteY = height - 1 - spriteY;
+                }
+                int tileIndex = pattern + (spriteY >> 3);
+                if (cgb && sprite.useVramBank1)
+                    tileIndex += TILES_PER_BANK;
+                int rowStart = (tileIndex << 6) | ((spriteY & 7) << 3);
+                int spritePalette = (cgb && !compatibility) ? sprite.cgbPalette : (sprite.usePal1 ? 1 : 0);
+                for (int x = 0; x < 8; x++) {
+                    int screenX = x0 + x;
+                    if (sprite.xFlip) {
+                        screenX = x0 + 7 - x;
+                    }
+                    if (screenX < 0 || screenX >= SCREEN_WIDTH) {
+                        continue;
+                    }
+                    int oldZ = lineZ[screenX];
+                    if ((oldZ & Z_SPRITE) != 0) { // Already covered by a sprite of higher priority
+                        continue;
+                    }
+                    int pixel = tiles[rowStart + x];
+                    boolean draw = false;
+                    if (cgb && !bgOn) { // Master priority is overwritten
+                        draw = true;
+                    } else if (cgb && (oldZ & Z_BG_PRIORITY) != 0) { // BG-to-OAM priority takes precedence(?)
+                        draw = false;
+                    } else if (!sprite.priority || (oldZ & Z_COLOR) == 0) {
+                        draw = true;
+                    }
+                    draw &= (pixel != 0);
+                    if (draw) {
+                        frameBuffer[line * SCREEN_WIDTH + screenX] = obColors[spritePalette * 4 + pixel];
+                        lineZ[screenX] |= Z_SPRITE;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -5,7 +5,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Comparator;
 
 /**
  * The graphical processing unit that handles pixels of the GB screen
@@ -15,8 +14,11 @@ public class GPU {
     public static final int MS_BETWEEN_VBLANKS = (144 * (51 + 20 + 43)) * 1000 / (1 << 20);
     public static final int WAIT_THRESHOLD = 4;
 
+    // Length in m-cycles of each mode
+    private static final int[] MODE_CYCLES = {51, 114, 20, 43};
+
     /**
-     * Accepts pixels
+     * Accepts frames, either whole or pixel by pixel
      */
     public interface GameboyScreen {
         /**
@@ -25,25 +27,128 @@ public class GPU {
          * @param y Y coordinate
          * @param color Color in RGB888 format
          */
-        void putPixel(int x, int y, int color);
+        default void putPixel(int x, int y, int color) {
+        }
 
         /**
          * Update the screen
          */
-        void update();
+        default void update() {
+        }
+
+        /**
+         * Show a completed frame
+         * By default this passes each pixel to putPixel and then calls update
+         * @param frame SCREEN_WIDTH * SCREEN_HEIGHT pixels in RGB888 format, row by row.
+         *              Only valid until this returns, as the GPU reuses it for the next frame
+         */
+        default void drawFrame(int[] frame) {
+            for (int y = 0; y < SCREEN_HEIGHT; y++) {
+                for (int x = 0; x < SCREEN_WIDTH; x++) {
+                    putPixel(x, y, frame[y * SCREEN_WIDTH + x]);
+                }
+            }
+            update();
+        }
+
+        /**
+         * Show a completed frame that is identical to the last one shown
+         * By default this is the same as drawFrame, screens may skip redrawing
+         * @param frame SCREEN_WIDTH * SCREEN_HEIGHT pixels in RGB888 format, row by row.
+         *              Only valid until this returns, as the GPU reuses it for the next frame
+         */
+        default void drawUnchangedFrame(int[] frame) {
+            drawFrame(frame);
+        }
+    }
+
+    /**
+     * Which frames get their pixels composed. Timing, interrupts and HDMA are the same either way
+     */
+    public enum FrameSkip {
+        NONE, // Render every frame
+        INTERVAL, // Render one in every N frames
+        DEADLINE, // Render a frame only once the display is due a new one, at 60Hz real time
+        ALL // Never render
     }
 
+    private static final long NS_BETWEEN_DISPLAYS = 1_000_000_000L / 60;
+
     public static final int VRAM_SIZE = 0x2000;
     public static final int SCREEN_HEIGHT = 144;
     public static final int SCREEN_WIDTH = 160;
 
-    private static class SpriteAttrib{
+    static class SpriteAttrib{
         public int x, y, pattern;
         public boolean priority, yFlip, xFlip, usePal1;
 
         // CGB only
         public boolean useVramBank1;
         public int cgbPalette;
+
+        /**
+         * Set one byte of the sprite's OAM entry
+         * @param field 0 - Y, 1 - X, 2 - pattern, 3 - flags
+         * @param value Byte written
+         * @param cgb True for gameboy color mode
+         */
+        void write(int field, int value, boolean cgb) {
+            switch (field) {
+                case 0: //Y
+                    y = value;
+                    break;
+                case 1: // X
+                    x = value;
+                    break;
+                case 2:
+                    pattern = value;
+                    break;
+                case 3: {
+                    priority = (value & 0x80) != 0;
+                    yFlip = (value & 0x40) != 0;
+                    xFlip = (value & 0x20) != 0;
+                    if (cgb) {
+                        useVramBank1 = (value & 0x8) != 0;
+                        cgbPalette = value & 7;
+                    } else {
+                        usePal1 = (value & 0x10) != 0;
+                    }
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Get one byte of the sprite's OAM entry
+         * @param field 0 - Y, 1 - X, 2 - pattern, 3 - flags
+         * @param cgb True for gameboy color mode
+         * @return Byte value
+         */
+        int read(int field, boolean cgb) {
+            switch (field) {
+                case 0: //Y
+                    return y;
+                case 1: // X
+                    return x;
+                case 2:
+                    return pattern;
+                case 3: {
+                    int flags = 0;
+                    if (priority) flags |= 0x80;
+                    if (yFlip) flags |= 0x40;
+                    if (xFlip) flags |= 0x20;
+                    if (cgb) {
+                        if (useVramBank1) flags |= 0x8;
+                        flags |= cgbPalette;
+                    } else {
+                        if (usePal1) flags |= 0x10;
+                        flags |= 7;
+                    }
+                    return flags;
+                }
+            }
+            return 0;
+        }
     }
 
     public final int[] grayPalette = {
@@ -57,6 +162,7 @@ public class GPU {
     private int windowLine;
     private int mode = 2; // 0 - hblank, 1 - vblank, 2 - OAM, 3 - VRAM
     private int modeCycles; // Cycles spent on this line
+    int frames; // Number of times VBlank has been entered
     private Machine machine;
 
     private boolean lcdOn, windowMapHigh, windowOn, bgTileHigh, bgMapHigh, tallSprites, spritesOn, bgOn;
@@ -64,6 +170,10 @@ public class GPU {
     private int lyc;
     private int scrollX, scrollY, windowX, windowY;
     private final int[] bgPal = new int[4], ob0Pal = new int[4], ob1Pal = new int[4];
+    // RGB888 color of each palette entry with any DMG shade mapping applied, 4 per palette
+    private final int[] bgColors = new int[4 * 8], obColors = new int[4 * 8];
+    private final int[] shades = new int[4]; // Copy of grayPalette the colors were resolved with
+    private boolean cgbPalettesExposed; // Frontend may change bgPalColor/obPalColor directly
 
     // CGB Only
     final int[] bgPalColor = new int[4 * 8], obPalColor = new int[4 * 8];
@@ -72,16 +182,19 @@ public class GPU {
     // End CGB Only
 
     private final SpriteAttrib[] attribs = new SpriteAttrib[40];
-    private final Integer[] spriteOrder = new Integer[40];
-    private final boolean[] occluded = new boolean[SCREEN_WIDTH];
 
     // Accessed by OpcodeTest
     byte[] vram;
-
-    private final int[] zBuf = new int[SCREEN_WIDTH * SCREEN_HEIGHT];
+    private final FrameRenderer renderer;
 
     private long lastVBlank;
 
+    private FrameSkip frameSkip = FrameSkip.NONE;
+    private int frameSkipInterval = 1;
+    private int framesSkipped;
+    private long lastDisplay;
+    private boolean renderFrame = true; // Whether the current frame is being composed
+
     public GameboyScreen screen = null;
 
     private final boolean cgb;
@@ -100,11 +213,16 @@ public class GPU {
         this.cgb = cgb;
         this.compatibility = compatibility;
         vram = new byte[cgb ? (VRAM_SIZE * 2) : VRAM_SIZE];
+        renderer = new FrameRenderer(vram.length, cgb, compatibility);
         for(int i = 0; i < 40; i++){
             attribs[i] = new SpriteAttrib();
-            spriteOrder[i] = i;
         }
-        lastVBlank = System.currentTimeMillis();
+        if (!machine.headless) {
+            lastVBlank = System.currentTimeMillis();
+        }
+        System.arraycopy(grayPalette, 0, shades, 0, shades.length);
+        updateBgColors();
+        updateObColors();
     }
 
     /**
@@ -116,19 +234,17 @@ public class GPU {
     }
 
     /**
-     * For now, just update the screen if there is one
+     * Hand the finished frame to the screen if there is one
      */
     private void doDraw(){
-        if(screen != null) {
-            screen.update();
-        }
+        renderer.endFrame(renderFrame ? screen : null);
     }
 
     /**
-     * For now it only draws the background
+     * Have the current line drawn, if this frame is being rendered
      */
     private void scanline(){
-        if(screen == null) {
+        if(screen == null || !renderFrame) {
             return;
         }
         if(!lcdOn) {
@@ -137,236 +253,25 @@ public class GPU {
         if (line >= SCREEN_HEIGHT) {
             return;
         }
-        Arrays.fill(zBuf, 0);
-        if(bgOn || (cgb && !compatibility)){ // Bit 0 of LCDC is different in CGB
-            int tiledataBase = bgTileHigh ? 0x1000 : 0x0000;
-            // Draw Background
-            {
-                int tilemapBase = bgMapHigh ? 0x1c00 : 0x1800;
-                int ty = line + scrollY;
-                int mty = ty >> 3;
-                mty &= 31;
-                ty &= 7;
-                for (int tx = 0; tx < 21; tx++) {
-                    int mtx = ((tx << 3) + scrollX) >> 3;
-                    mtx &= 31;
-
-                    // Index into tile map
-                    int tileNum = vram[tilemapBase + mty * 32 + mtx] & 0xff;
-
-                    // CGB attributes
-                    boolean flipX = false, flipY = false, bgPriority = false, highVramBank = false;
-                    int cgbPalette = 0;
-                    if (cgb) {
-                        int attribute = vram[tilemapBase + mty * 32 + mtx + 0x2000];
-                        bgPriority = (attribute & 0x80) != 0;
-                        flipY = (attribute & 0x40) != 0;
-                        flipX = (attribute & 0x20) != 0;
-                        highVramBank = (attribute & 0x8) != 0;
-                        cgbPalette = attribute & 7;
-                    }
-
-                    if (bgTileHigh) tileNum = (byte)tileNum;
-                    int rowY = ty;
-                    if (flipY)
-                        rowY = 7 - rowY;
-                    int rowBase = tiledataBase + rowY * 2;
-                    int tileAddress = rowBase + tileNum * 16;
-                    if (highVramBank)
-                        tileAddress += 0x2000;
-                    int row0 = vram[tileAddress];
-                    int row1 = vram[tileAddress + 1];
-                    for (int x = 7; x >= 0; x--) {
-                        int screenX = x;
-                        if (flipX)
-                            screenX = 7 - screenX;
-                        screenX = screenX - (scrollX & 7) + tx * 8;
-                        if (screenX < 0) {
-                            break;
-                        }
-                        int palid = ((row1 & 1) << 1) | (row0 & 1);
-                        row1 >>= 1;
-                        row0 >>= 1;
-                        if (screenX >= SCREEN_WIDTH) {
-                            continue;
-                        }
-                        int color;
-                        if (cgb) {
-                            int pIndex = palid;
-                            if (compatibility) {
-                                pIndex = bgPal[pIndex];
-                            }
-                            int rgb = bgPalColor[cgbPalette * 4 + pIndex];
-                            int r = rgb & 31;
-                            int g = (rgb >> 5) & 31;
-                            int b = (rgb >> 10) & 31;
-                            color = (r << 19) | (g << 11) | (b << 3);
-                        } else {
-                            int shade = bgPal[palid];
-                            color = grayPalette[shade];
-                        }
-                        screen.putPixel(screenX, line, color);
-                        if (bgPriority && palid != 0) {
-                            zBuf[line * 160 + screenX] = -1;
-                        } else {
-                            zBuf[line * 160 + screenX] = palid;
-                        }
-                    }
-                }
-            }
-            // Draw window
-            if(windowOn && windowX >= 0 && windowY >= 0 && windowX <= 166 && windowY <= 143){
-                int tilemapBase = windowMapHigh ? 0x1c00 : 0x1800;
-                int wline = windowLine - windowY;
-                int mty = wline >> 3;
-                int ty = wline & 7;
-                if(wline >= 0){
-                    for(int tx = 0; tx < 21; tx ++){
-                        int index = tilemapBase + mty * 32 + tx;
-                        if (index >= VRAM_SIZE) {
-                            continue;
-                        }
-                        int tileNum = vram[index] & 0xff;
-
-                        // CGB attributes
-                        boolean flipX = false, flipY = false, bgPriority = false, highVramBank = false;
-                        int cgbPalette = 0;
-                        if (cgb) {
-                            int attribute = vram[index + 0x2000];
-                            bgPriority = (attribute & 0x80) != 0;
-                            flipY = (attribute & 0x40) != 0;
-                            flipX = (attribute & 0x20) != 0;
-                            highVramBank = (attribute & 0x8) != 0;
-                            cgbPalette = attribute & 7;
-                        }
+        checkPaletteChanges();
+        renderer.renderLine(line, windowLine, lcdc(), oamPosOrder, scrollX, scrollY, windowX, windowY);
+    }
 
-                        if(bgTileHigh) tileNum = (byte)tileNum;
-                        int rowY = ty;
-                        if (flipY)
-                            rowY = 7 - rowY;
-                        int rowBase = tiledataBase + rowY * 2;
-                        if (highVramBank)
-                            rowBase += 0x2000;
-                        int row0 = vram[tileNum * 16 + rowBase];
-                        int row1 = vram[tileNum * 16 + rowBase + 1];
-
-                        for(int x = 7; x >= 0; x--){
-                            int screenX = x;
-                            if (flipX)
-                                screenX = 7 - screenX;
-                            screenX = screenX - 7 + tx * 8 + windowX;
-                            int palid = ((row1 & 1) << 1) | (row0 & 1);
-                            row1 >>= 1;
-                            row0 >>= 1;
-                            if(screenX < 0 || screenX >= 160) {
-                                continue; // Off-screen
-                            }
-                            int color;
-                            if (cgb) {
-                                int pIndex = palid;
-                                if (compatibility) {
-                                    pIndex = bgPal[pIndex];
-                                }
-                                int rgb = bgPalColor[cgbPalette * 4 + pIndex];
-                                int r = rgb & 31;
-                                int g = (rgb >> 5) & 31;
-                                int b = (rgb >> 10) & 31;
-                                color = (r << 19) | (g << 11) | (b << 3);
-                            } else {
-                                int shade = bgPal[palid];
-                                color = grayPalette[shade];
-                            }
-                            screen.putPixel(screenX, line, color);
-                            if (bgPriority && palid != 0) {
-                                zBuf[line * 160 + screenX] = -1;
-                            } else {
-                                zBuf[line * 160 + screenX] |= palid;
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        // Draw sprites (something still isn't right here)
-        if (spritesOn) {
-            Arrays.fill(occluded, false);
-            int height = tallSprites ? 16 : 8;
-            if (cgb && !oamPosOrder) {
-                Arrays.sort(spriteOrder);
-            } else {
-                Arrays.sort(spriteOrder, Comparator.comparingInt(a -> attribs[a].x));
-            }
-            int spritesThisLine = 0;
-            for (int i = 0; i < spriteOrder.length && spritesThisLine < 10; i++) {
-                SpriteAttrib sprite = attribs[spriteOrder[i]];
-                int y0 = sprite.y - 16;
-                if (y0 > line || y0 + height <= line) {
-                    continue;
-                }
-                spritesThisLine++;
-                int x0 = sprite.x - 8;
-                if (x0 + 8 <= 0 || x0 >= SCREEN_WIDTH) {
-                    continue;
-                }
-                int pattern = sprite.pattern;
-                if (tallSprites) {
-                    pattern &= ~1;
-                }
-                int patternBase = pattern << 4;
-                if (cgb && sprite.useVramBank1)
-                    patternBase += 0x2000;
-                int spriteY = line - y0;
-                if (sprite.yFlip) {
-                    spriteY = height - 1 - spriteY;
-                }
-                int row0 = vram[patternBase + 2 * spriteY];
-                int row1 = vram[patternBase + 2 * spriteY + 1];
-                for (int x = 0; x < 8; x++) {
-                    int screenX = x0 + x;
-                    if (sprite.xFlip) {
-                        screenX = x0 + 7 - x;
-                    }
-                    if (screenX < 0 || screenX >= SCREEN_WIDTH) {
-                        continue;
-                    }
-                    if (occluded[screenX]) {
-                        continue;
-                    }
-                    int pixel = ((row0 >> (7 - x)) & 1) | (((row1 >> (7 - x)) & 1) << 1);
-                    int oldZ = zBuf[line * 160 + screenX];
-                    boolean draw = false;
-                    if (cgb && !bgOn) { // Master priority is overwritten
-                        draw = true;
-                    } else if (cgb && oldZ == -1) { // BG-to-OAM priority takes precedence(?)
-                        draw = false;
-                    } else if (!sprite.priority || oldZ == 0) {
-                        draw = true;
-                    }
-                    draw &= (pixel != 0);
-                    if (draw) {
-                        int color;
-                        if (cgb) {
-                            int pIndex = pixel;
-                            int sPal = sprite.cgbPalette;
-                            if (compatibility) {
-                                pIndex = (sprite.usePal1 ? ob1Pal : ob0Pal)[pIndex];
-                                sPal = 0;
-                            }
-                            int rgb = obPalColor[sPal * 4 + pIndex];
-                            int r = rgb & 31;
-                            int g = (rgb >> 5) & 31;
-                            int b = (rgb >> 10) & 31;
-                            color = (r << 19) | (g << 11) | (b << 3);
-                        } else {
-                            int shade = (sprite.usePal1 ? ob1Pal : ob0Pal)[pixel];
-                            color = grayPalette[shade];
-                        }
-                        screen.putPixel(screenX, line, color);
-                        occluded[screenX] = true;
-                    }
-                }
-            }
-        }
+    /**
+     *
+     * @return Value of the LCDC register
+     */
+    private int lcdc() {
+        int lcdc = 0;
+        if (lcdOn) lcdc |= 0x80;
+        if (windowMapHigh) lcdc |= 0x40;
+        if (windowOn) lcdc |= 0x20;
+        if (!bgTileHigh) lcdc |= 0x10;
+        if (bgMapHigh) lcdc |= 0x8;
+        if (tallSprites) lcdc |= 0x4;
+        if (spritesOn) lcdc |= 0x2;
+        if (bgOn) lcdc |= 0x1;
+        return lcdc;
     }
 
     /**
@@ -404,19 +309,22 @@ public class GPU {
                     }
                     else {
                         doDraw();
+                        frames++;
                         machine.interruptsFired |= 1; // Vblank interrupt
                         if(vblankInt) {
                             machine.interruptsFired |= 0x2;
                         }
                         mode = 1;
                         machine.mmu.onVblank();
-                        long passed = System.currentTimeMillis() - lastVBlank;
-                        long targetWait = MS_BETWEEN_VBLANKS / machine.speedUp - passed;
-                        if (targetWait > WAIT_THRESHOLD && silent) {
-                            try {
-                                Thread.sleep(targetWait);
-                            } catch (Exception e) {
-                                e.printStackTrace();
+                        if (!machine.headless) {
+                            long passed = System.currentTimeMillis() - lastVBlank;
+                            long targetWait = MS_BETWEEN_VBLANKS / machine.speedUp - passed;
+                            if (targetWait > WAIT_THRESHOLD && silent) {
+                                try {
+                                    Thread.sleep(targetWait);
+                                } catch (Exception e) {
+                                    e.printStackTrace();
+                                }
                             }
                         }
                     }
@@ -433,7 +341,10 @@ public class GPU {
                         mode = 2;
                         line = 0;
                         windowLine = 0;
-                        lastVBlank = System.currentTimeMillis();
+                        if (!machine.headless) {
+                            lastVBlank = System.currentTimeMillis();
+                        }
+                        renderFrame = shouldRender();
                     }
                 }
                 break;
@@ -459,6 +370,156 @@ public class GPU {
         }
     }
 
+    /**
+     *
+     * @return Number of m-cycles until the next mode change, or -1 if the LCD is off
+     */
+    int cyclesUntilUpdate() {
+        if (!lcdOn) {
+            return -1;
+        }
+        return MODE_CYCLES[mode] - modeCycles;
+    }
+
+    /**
+     * Set which frames are rendered, e.g. to skip most of them when fast forwarding
+     * @param frameSkip Policy to use from the next frame
+     * @param interval With FrameSkip.INTERVAL, render one in this many frames
+     */
+    public void setFrameSkip(FrameSkip frameSkip, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Frame skip interval must be at least 1");
+        }
+        this.frameSkip = frameSkip;
+        frameSkipInterval = interval;
+        framesSkipped = 0;
+        lastDisplay = 0;
+    }
+
+    /**
+     * Decide at the start of a frame whether to compose it
+     * @return True if the frame should be rendered
+     */
+    private boolean shouldRender() {
+        switch (frameSkip) {
+            case INTERVAL:
+                if (++framesSkipped < frameSkipInterval) {
+                    return false;
+                }
+                framesSkipped = 0;
+                return true;
+            case DEADLINE: {
+                long now = System.nanoTime();
+                if (lastDisplay != 0 && now - lastDisplay < NS_BETWEEN_DISPLAYS) {
+                    return false;
+                }
+                lastDisplay = now;
+                return true;
+            }
+            case ALL:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     *
+     * @param rgb555 Color as stored in CGB palette memory
+     * @return Same color as RGB888
+     */
+    private static int toRgb888(int rgb555) {
+        int r = rgb555 & 31;
+        int g = (rgb555 >> 5) & 31;
+        int b = (rgb555 >> 10) & 31;
+        return (r << 19) | (g << 11) | (b << 3);
+    }
+
+    /**
+     * Resolve the colors of every background palette entry
+     */
+    private void updateBgColors() {
+        for (int i = 0; i < bgColors.length; i++) {
+            if (!cgb) {
+                bgColors[i] = shades[bgPal[i & 3]];
+            } else if (compatibility) {
+                bgColors[i] = toRgb888(bgPalColor[(i & ~3) | bgPal[i & 3]]);
+            } else {
+                bgColors[i] = toRgb888(bgPalColor[i]);
+            }
+        }
+        renderer.setBgColors(bgColors);
+    }
+
+    /**
+     * Resolve the colors of every sprite palette entry
+     * Without CGB palettes, palettes 0 and 1 stand for OBP0 and OBP1
+     */
+    private void updateObColors() {
+        for (int i = 0; i < obColors.length; i++) {
+            int[] dmgPal = (i & 4) == 0 ? ob0Pal : ob1Pal;
+            if (!cgb) {
+                obColors[i] = shades[dmgPal[i & 3]];
+            } else if (compatibility) {
+                obColors[i] = toRgb888(obPalColor[dmgPal[i & 3]]);
+            } else {
+                obColors[i] = toRgb888(obPalColor[i]);
+            }
+        }
+        renderer.setObColors(obColors);
+    }
+
+    /**
+     * Resolve colors again if the frontend changed a palette since they were last resolved
+     */
+    private void checkPaletteChanges() {
+        boolean changed = !Arrays.equals(shades, grayPalette);
+        if (changed) {
+            System.arraycopy(grayPalette, 0, shades, 0, shades.length);
+        }
+        if (changed || (cgbPalettesExposed && line == 0)) {
+            updateBgColors();
+            updateObColors();
+        }
+    }
+
+    /**
+     * Hand out the CGB palette memory, which means it may be changed without a register write
+     */
+    void exposeCgbPalettes() {
+        cgbPalettesExposed = true;
+    }
+
+    /**
+     * Pass all of VRAM and OAM to the renderer again, e.g. after VRAM was changed directly
+     */
+    void syncRenderer() {
+        for (int address = 0; address < vram.length; address++) {
+            renderer.writeVram(address, vram[address]);
+        }
+        for (int offset = 0; offset < 0xa0; offset++) {
+            renderer.writeOam(offset, attribs[offset >> 2].read(offset & 3, cgb));
+        }
+    }
+
+    /**
+     * Enable or disable drawing the background and window from a cache of both tile maps drawn out
+     * as 256x256 layers, patched as tile map entries and tiles change. The pixels are the same either way
+     * @param enabled true to use the layer cache
+     */
+    public void setLayerCache(boolean enabled) {
+        renderer.setLayerCache(enabled);
+    }
+
+    /**
+     * Compose frames on a worker thread while the next frame is emulated, or go back to
+     * composing each line as it is reached. The frames shown are the same either way
+     * @param threaded True to render on a worker thread
+     */
+    public void setThreadedRendering(boolean threaded) {
+        renderer.setThreaded(threaded);
+    }
+
     /**
      * Increment the line and windowline as appropriate
      */
@@ -495,46 +556,12 @@ public class GPU {
                                 return 0;
                             }
                             offset >>= 2;
-                            SpriteAttrib sprite = attribs[offset];
-                            switch (address & 3) {
-                                case 0: //Y
-                                    return sprite.y;
-                                case 1: // X
-                                    return sprite.x;
-                                case 2:
-                                    return sprite.pattern;
-                                case 3: {
-                                    int flags = 0;
-                                    if (sprite.priority) flags |= 0x80;
-                                    if (sprite.yFlip) flags |= 0x40;
-                                    if (sprite.xFlip) flags |= 0x20;
-                                    if (cgb) {
-                                        if (sprite.useVramBank1) flags |= 0x8;
-                                        flags |= sprite.cgbPalette;
-                                    } else {
-                                        if (sprite.usePal1) flags |= 0x10;
-                                        flags |= 7;
-                                    }
-                                    return flags;
-                                }
-                            }
-                            return 0;
+                            return attribs[offset].read(address & 3, cgb);
                         }
                         case 0xf: { // Registers
                             switch (address & 0xf) {
                                 case 0x00: // 0xff40 LCDC
-                                {
-                                    int lcdc = 0;
-                                    if (lcdOn) lcdc |= 0x80;
-                                    if (windowMapHigh) lcdc |= 0x40;
-                                    if (windowOn) lcdc |= 0x20;
-                                    if (!bgTileHigh) lcdc |= 0x10;
-                                    if (bgMapHigh) lcdc |= 0x8;
-                                    if (tallSprites) lcdc |= 0x4;
-                                    if (spritesOn) lcdc |= 0x2;
-                                    if (bgOn) lcdc |= 0x1;
-                                    return lcdc;
-                                }
+                                    return lcdc();
                                 case 0x01: // 0xff41 STAT
                                 {
                                     int stat = mode;
@@ -613,6 +640,7 @@ public class GPU {
                     address = address | (vramBank << 13);
                 }
                 vram[address] = (byte)value;
+                renderer.writeVram(address, value);
                 break;
             case 0xf: // OAM and registers
                 switch((address >> 8) & 0xf) {
@@ -624,31 +652,8 @@ public class GPU {
                         if (offset >= 0xa0) {
                             break;
                         }
-                        offset >>= 2;
-                        SpriteAttrib sprite = attribs[offset];
-                        switch (address & 3) {
-                            case 0: //Y
-                                sprite.y = value;
-                                break;
-                            case 1: // X
-                                sprite.x = value;
-                                break;
-                            case 2:
-                                sprite.pattern = value;
-                                break;
-                            case 3: {
-                                sprite.priority = (value & 0x80) != 0;
-                                sprite.yFlip = (value & 0x40) != 0;
-                                sprite.xFlip = (value & 0x20) != 0;
-                                if (cgb) {
-                                    sprite.useVramBank1 = (value & 0x8) != 0;
-                                    sprite.cgbPalette = value & 7;
-                                } else {
-                                    sprite.usePal1 = (value & 0x10) != 0;
-                                }
-                                break;
-                            }
-                        }
+                        attribs[offset >> 2].write(address & 3, value, cgb);
+                        renderer.writeOam(offset, value);
                         break;
                     case 0xf: // Registers
                         if ((address & 0xf0) == 0x40) {
@@ -686,18 +691,21 @@ public class GPU {
                                     bgPal[1] = (value >> 2) & 3;
                                     bgPal[2] = (value >> 4) & 3;
                                     bgPal[3] = (value >> 6) & 3;
+                                    updateBgColors();
                                     break;
                                 case 0x8:
                                     ob0Pal[0] = value & 3;
                                     ob0Pal[1] = (value >> 2) & 3;
                                     ob0Pal[2] = (value >> 4) & 3;
                                     ob0Pal[3] = (value >> 6) & 3;
+                                    updateObColors();
                                     break;
                                 case 0x9:
                                     ob1Pal[0] = value & 3;
                                     ob1Pal[1] = (value >> 2) & 3;
                                     ob1Pal[2] = (value >> 4) & 3;
                                     ob1Pal[3] = (value >> 6) & 3;
+                                    updateObColors();
                                     break;
                                 case 0xa:
                                     windowY = value;
@@ -729,6 +737,7 @@ public class GPU {
                                     if (bgPalIncrement) {
                                         bgPalIndex = (bgPalIndex + 1) & 63;
                                     }
+                                    updateBgColors();
                                     break;
                                 }
                                 case 0xA: // Ob Pal index
@@ -747,6 +756,7 @@ public class GPU {
                                     if (obPalIncrement) {
                                         obPalIndex = (obPalIndex + 1) & 63;
                                     }
+                                    updateObColors();
                                 }
                                 case 0xC:
                                     if (cgb) {
@@ -900,6 +910,9 @@ public class GPU {
             obPalIncrement = dis.readBoolean();
             oamPosOrder = dis.readBoolean();
         }
+        syncRenderer();
+        updateBgColors();
+        updateObColors();
     }
 
     /**
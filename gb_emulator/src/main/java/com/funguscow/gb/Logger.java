@@ -37,7 +37,7 @@ public class Logger implements AutoCloseable {
         }
         try {
             String pcPart = cpu.pc < 0x4000 ? String.format("00:%04x", cpu.pc) :
-                    cpu.pc < 0x8000 ? String.format("%02d:%04x", cpu.mmu.romBank, cpu.pc) :
+                    cpu.pc < 0x8000 ? String.format("%02d:%04x", cpu.mmu.mbc.romBank, cpu.pc) :
                             String.format("%04x", cpu.pc);
             String line = String.format("%sBC=%04x DE=%04x HL=%04x AF=%04x SP=%04x PC=%04x   $%x$%x$%x$%x$%x$%x$%x\r\n",
                     pcPart, cpu.getRegister(8), cpu.getRegister(9), cpu.getRegister(10), cpu.getRegister(13),
@@ -4,9 +4,8 @@ package com.funguscow.gb;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -97,25 +96,22 @@ public class MMU {
     Machine machine;
     private int ramSize;
     byte[] rom;
+    private boolean romShared;
     byte[] internalRam;
     byte[] externalRam;
     byte[] zeroPage;
-    int romBank;
+    Mbc mbc;
     private int numRomBanks;
-    private int ramBank;
     private int numRamBanks;
-    private int mbcType;
-    private boolean mbc1BankMode;
-    private boolean ramEnabled;
-    private int mbc3RtcRegister;
-    private int mbc3RtcLatch;
-    private long mbc3LastTime;
-    private int seconds;
-    private int minutes;
-    private int hours;
-    private int days;
-    private boolean mbc3HaltRtc, mbc3DaysOverflow;
     public boolean leftBios = false;
+    // Incremented whenever the memory map may have changed, so cached code knows to look itself up again
+    int mapVersion;
+    // Page table of plain memory indexed by address >> 8, a null page means the access needs the slow path
+    private final byte[][] readPages = new byte[0x100][];
+    private final int[] readOffsets = new int[0x100];
+    private final byte[][] writePages = new byte[0x100][];
+    private final int[] writeOffsets = new int[0x100];
+    BlockCache blockCache;
 
     // CGB only stuff
     private boolean cgb;
@@ -128,31 +124,31 @@ public class MMU {
     private boolean hdmaActive;
 
     // Cheats
-    private final Map<Integer, GameGenieCode> gameGenieCodes = new HashMap<>();
+    // Game Genie codes by address, allocated on first use so reads cost only a null check without cheats
+    private GameGenieCode[][] gameGenieCodes;
     private final Set<GameSharkCode> gameSharkCodes = new HashSet<>();
 
     /**
      * Initialize according to power up seqeunce
      * @param machine Parent machine
-     * @param mbcType Cartridge type
+     * @param mbc Cartridge bank controller
      * @param numRomBanks Number of ROM banks
      * @param numRamBanks Number of RAM banks
      * @param ramSize Size in bytes of RAM
      */
-    public MMU(Machine machine, int mbcType, int numRomBanks, int numRamBanks, int ramSize, boolean cgb){
-        System.out.printf("Initialize MMU with MBC: %x, %d ROM and %d RAM\n", mbcType, numRomBanks, numRamBanks);
+    public MMU(Machine machine, Mbc mbc, int numRomBanks, int numRamBanks, int ramSize, boolean cgb){
+        System.out.printf("Initialize MMU with MBC: %x, %d ROM and %d RAM\n", mbc.type(), numRomBanks, numRamBanks);
         this.machine = machine;
-        this.mbcType = mbcType;
+        this.mbc = mbc;
         this.numRomBanks = numRomBanks;
         this.numRamBanks = numRamBanks;
         this.ramSize = ramSize;
         this.cgb = cgb;
-        rom = new byte[numRomBanks * 0x4000];
-        romBank = 1;
-        ramBank = 0;
         externalRam = new byte[ramSize];
         internalRam = new byte[cgb ? 0x8000 : 0x2000];
         zeroPage = new byte[128];
+        mbc.attach(this, numRomBanks, numRamBanks, ramSize);
+        remap();
         // Startup sequence
         write8(0xff00, 0xCF);
         write8(0xff02, 0x7E);
@@ -174,30 +170,35 @@ public class MMU {
         write8(0xfffa, 0);
         write8(0xff4b, 0);
         write8(0xffff, 0);
-        mbc3LastTime = System.currentTimeMillis();
+        mbc.resetRtcClock();
         System.out.println(ramSize + " byte of RAM across " + numRamBanks + " banks");
-        System.out.println(numRomBanks + " banks of ROM using MBC #" + mbcType);
+        System.out.println(numRomBanks + " banks of ROM using MBC #" + mbc.type());
     }
 
     /**
-     * Load from an arry
-     * @param ROM Array of bytes  of ROM data
-     * @param offset WHere to load to
-     * @param len How many bytes to load
+     * Use a ROM image, which may be shared with other MMUs
+     * @param ROM Image of numRomBanks * 0x4000 bytes, never written to directly
+     * @param shared If true, the image is copied before writeRom modifies it
      */
-    public void loadRom(byte[] ROM, int offset, int len){
-        System.arraycopy(ROM, 0, rom, offset, len);
+    public void setRom(byte[] ROM, boolean shared){
+        rom = ROM;
+        romShared = shared;
+        remap();
+        if (blockCache != null) {
+            blockCache.flush();
+        }
     }
 
     /**
-     * Load from an input stream
-     * @param ROM InputStream of ROM
-     * @param offset Where to load to
-     * @param len How many bytes
-     * @throws IOException From inner read
+     * Overwrite a byte of ROM, taking a private copy first if the image is shared
+     * @param index Index into the ROM image
+     * @param value Value to write
      */
-    public void loadRom(InputStream ROM, int offset, int len) throws IOException {
-        ROM.read(rom, offset, len);
+    void writeRom(int index, int value) {
+        if (romShared) {
+            setRom(rom.clone(), false);
+        }
+        rom[index] = (byte) value;
     }
 
     public void saveERam(DataOutputStream dos) throws IOException {
@@ -237,43 +238,14 @@ public class MMU {
         dis.read(zeroPage);
     }
 
-    public void saveRTC(DataOutputStream dos) throws IOException {
-        dos.write("RTC ".getBytes(StandardCharsets.UTF_8));
-        dos.writeInt(days);
-        dos.writeInt(hours);
-        dos.writeInt(minutes);
-        dos.writeInt(seconds);
-        dos.writeLong(mbc3LastTime);
-        dos.writeByte(mbc3RtcRegister);
-        dos.writeByte(mbc3RtcLatch);
-        dos.writeBoolean(mbc3HaltRtc);
-        dos.writeBoolean(mbc3DaysOverflow);
-    }
-
-    public void loadRTC(DataInputStream dis) throws IOException {
-        days = dis.readInt();
-        hours = dis.readInt();
-        minutes = dis.readInt();
-        seconds = dis.readInt();
-        mbc3LastTime = dis.readLong();
-        mbc3RtcRegister = dis.readByte() & 0xff;
-        mbc3RtcLatch = dis.readByte() & 0xff;
-        mbc3HaltRtc = dis.readBoolean();
-        mbc3DaysOverflow = dis.readBoolean();
-        incrementRtc();
-    }
-
     public void saveRegisters(DataOutputStream dos) throws IOException {
         dos.write("MEMR".getBytes(StandardCharsets.UTF_8));
         dos.writeInt(ramSize);
         dos.writeInt(numRomBanks);
         dos.writeInt(numRamBanks);
-        dos.writeInt(mbcType);
+        dos.writeInt(mbc.type());
         dos.writeBoolean(cgb);
-        dos.writeInt(romBank);
-        dos.writeInt(ramBank);
-        dos.writeBoolean(mbc1BankMode);
-        dos.writeBoolean(ramEnabled);
+        mbc.saveRegisters(dos);
         dos.writeBoolean(leftBios);
         if (cgb) {
             dos.writeInt(wramBank);
@@ -296,16 +268,13 @@ public class MMU {
         if (numRamBanks != dis.readInt()) {
             throw new IOException("Number of RAM banks do not match");
         }
-        if (mbcType != dis.readInt()) {
+        if (mbc.type() != dis.readInt()) {
             throw new IOException("MBC types do not match");
         }
         if (cgb != dis.readBoolean()) {
             throw new IOException("Color modes do not match");
         }
-        romBank = dis.readInt();
-        ramBank = dis.readInt();
-        mbc1BankMode = dis.readBoolean();
-        ramEnabled = dis.readBoolean();
+        mbc.loadRegisters(dis);
         leftBios = dis.readBoolean();
         if (cgb) {
             wramBank = Math.max(1, dis.readInt());
@@ -322,9 +291,7 @@ public class MMU {
         if (ramSize > 0) {
             saveERam(dos);
         }
-        if (mbcType == 3) {
-            saveRTC(dos);
-        }
+        mbc.saveRtc(dos);
         dos.write("end ".getBytes(StandardCharsets.UTF_8));
     }
 
@@ -344,7 +311,7 @@ public class MMU {
                     loadERam(dis);
                     break;
                 case "RTC ":
-                    loadRTC(dis);
+                    mbc.loadRtc(dis);
                     break;
                 default:
                     throw new IOException(String.format("Invalid identifier %s", key));
@@ -359,9 +326,7 @@ public class MMU {
         }
         saveWRam(dos);
         saveHRam(dos);
-        if (mbcType == 3) {
-            saveRTC(dos);
-        }
+        mbc.saveRtc(dos);
         saveRegisters(dos);
         dos.write("end ".getBytes(StandardCharsets.UTF_8));
     }
@@ -386,7 +351,7 @@ public class MMU {
                     loadHRam(dis);
                     break;
                 case "RTC ":
-                    loadRTC(dis);
+                    mbc.loadRtc(dis);
                     break;
                 case "MEMR":
                     loadRegisters(dis);
@@ -395,6 +360,10 @@ public class MMU {
                     throw new IOException(String.format("Invalid identifier %s", key));
             }
         }
+        remap();
+        if (blockCache != null) {
+            blockCache.flush();
+        }
     }
 
     /**
@@ -415,7 +384,7 @@ public class MMU {
         } else {
             size = (size + 1) << 4;
             for (int i = 0; i < size; i++) {
-                int src = read8(hdmaSource + i);
+                int src = read8((hdmaSource + i) & 0xffff);
                 write8(0x8000 + hdmaDest + i, src);
             }
         }
@@ -429,7 +398,7 @@ public class MMU {
             return;
         }
         for (int i = 0; i < 0x10; i++) {
-            int src = read8(hdmaSource + (hdmaProgress << 4) + i);
+            int src = read8((hdmaSource + (hdmaProgress << 4) + i) & 0xffff);
             write8(0x8000 + hdmaDest + (hdmaProgress << 4) + i, src);
         }
         hdmaProgress++;
@@ -463,13 +432,22 @@ public class MMU {
     }
 
     public void addCode(GameGenieCode code) {
-        int key = code.address;
-        if (code.doCheck) {
-            key |= (code.checkByte & 0xff) << 16;
-        } else {
-            key |= 0xfff0000;
+        if (gameGenieCodes == null) {
+            gameGenieCodes = new GameGenieCode[0x10000][];
+        }
+        int address = code.address & 0xffff;
+        GameGenieCode[] codes = gameGenieCodes[address];
+        int index = findCode(codes, code);
+        if (codes == null) {
+            codes = new GameGenieCode[1];
+        } else if (index < 0) {
+            codes = Arrays.copyOf(codes, codes.length + 1);
+        }
+        codes[index < 0 ? codes.length - 1 : index] = code; // Replaces any code with the same check
+        gameGenieCodes[address] = codes;
+        if (blockCache != null) {
+            blockCache.flush();
         }
-        gameGenieCodes.put(key, code);
     }
 
     public void addCode(GameSharkCode code) {
@@ -477,15 +455,43 @@ public class MMU {
     }
 
     public void removeCode(GameGenieCode code) {
-        int key = code.address;
-        if (code.doCheck) {
-            key |= code.checkByte << 16;
-        } else {
-            key |= 0xfff0000;
+        if (gameGenieCodes == null) {
+            return;
+        }
+        int address = code.address & 0xffff;
+        GameGenieCode[] codes = gameGenieCodes[address];
+        int index = findCode(codes, code);
+        if (index >= 0 && codes[index].equals(code)) {
+            GameGenieCode[] remaining = null;
+            if (codes.length > 1) {
+                remaining = new GameGenieCode[codes.length - 1];
+                System.arraycopy(codes, 0, remaining, 0, index);
+                System.arraycopy(codes, index + 1, remaining, index, remaining.length - index);
+            }
+            gameGenieCodes[address] = remaining;
+            if (blockCache != null) {
+                blockCache.flush();
+            }
         }
-        if (gameGenieCodes.get(key).equals(code)) {
-            gameGenieCodes.remove(key);
+    }
+
+    /**
+     * Find a Game Genie code that applies under the same condition as another
+     * @param codes Codes for one address, or null
+     * @param code Code to match
+     * @return Index of the code with the same check (or lack of one), or -1
+     */
+    private static int findCode(GameGenieCode[] codes, GameGenieCode code) {
+        if (codes == null) {
+            return -1;
+        }
+        for (int i = 0; i < codes.length; i++) {
+            GameGenieCode other = codes[i];
+            if (other.doCheck == code.doCheck && (!code.doCheck || other.checkByte == code.checkByte)) {
+                return i;
+            }
         }
+        return -1;
     }
 
     public void removeCode(GameSharkCode code) {
@@ -494,26 +500,45 @@ public class MMU {
 
     public int read8(int address) {
         int value = _read8(address);
-        int key = (value << 16) | address;
-        GameGenieCode code = gameGenieCodes.get(key);
-        if (code != null) {
-            value = code.value & 0xff;
-        } else {
-            key = 0xfff0000 | address;
-            code = gameGenieCodes.get(key);
-            if (code != null) {
-                value = code.value & 0xff;
+        if (gameGenieCodes != null) {
+            GameGenieCode[] codes = gameGenieCodes[address & 0xffff];
+            if (codes != null) {
+                value = applyCodes(codes, value);
             }
         }
         return value;
     }
 
+    /**
+     * Apply the Game Genie codes for an address to the value read from it
+     * A code whose check byte matches the value takes priority over an unchecked one
+     * @param codes Codes for the address
+     * @param value Value actually read
+     * @return Value to return instead
+     */
+    private static int applyCodes(GameGenieCode[] codes, int value) {
+        GameGenieCode unchecked = null;
+        for (GameGenieCode code : codes) {
+            if (!code.doCheck) {
+                unchecked = code;
+            } else if ((code.checkByte & 0xff) == value) {
+                return code.value & 0xff;
+            }
+        }
+        return unchecked == null ? value : unchecked.value & 0xff;
+    }
+
     /**
      * Read 1 byte from address
      * @param address Address of byte to read
      * @return The byte at [address]
      */
     public int _read8(int address){
+        address &= 0xffff; // An operand fetched past 0xffff wraps around
+        byte[] page = readPages[address >> 8];
+        if (page != null) {
+            return page[readOffsets[address >> 8] | (address & 0xff)] & 0xff;
+        }
         switch(address >> 13){
             case 0:
                 if(address < 0x100 && !leftBios) {
@@ -523,57 +548,14 @@ public class MMU {
                     return machine.mode.BIOS[address - 0x100] & 0xff;
                 }
             case 1: //0x0000 - 0x3fff
-                switch (mbcType) {
-                    case 1:
-                        if (mbc1BankMode) {
-                            return rom[address | ((romBank & ~0x1f) << 14)] & 0xff;
-                        }
-                    default:
-                        return rom[address] & 0xff;
-                }
+                return rom[address | mbc.romBank0Offset()] & 0xff;
             case 2:
             case 3: //0x4000 - 0x7fff
-                return rom[(address & 0x3fff) | (romBank << 14)] & 0xff;
+                return rom[(address & 0x3fff) | mbc.romBankOffset()] & 0xff;
             case 4: //0x8000 - 0x9fff
                 return machine.gpu.read(address);
             case 5: //0xa000 - 0xbfff
-                switch(mbcType){
-                    case 1:
-                        if(ramEnabled){
-                            int erb = mbc1BankMode ? ramBank : 0;
-                            int ramAddr = (address & 0x1fff) | (erb << 13);
-                            if(ramAddr < ramSize) {
-                                return externalRam[ramAddr] & 0xff;
-                            }
-                        }
-                        return 0xff;
-                    case 2: // Write low 4 bits of "RAM"
-                        if(ramEnabled){
-                            return 0xf0 | (externalRam[address & 0x1ff] & 0xf);
-                        }
-                        return 0xff;
-                    case 3: // Either write RAM or set a register
-                        switch(mbc3RtcRegister){
-                            case 0:
-                                return externalRam[(ramBank << 13) | (address & 0x1fff)] & 0xff;
-                            case 8:
-                                return seconds;
-                            case 9:
-                                return minutes;
-                            case 10:
-                                return hours;
-                            case 11:
-                                return days & 0xff;
-                            case 12:
-                                return (days >> 8) | (mbc3HaltRtc ? 0x40 : 0) | (mbc3DaysOverflow ? 0x80 : 0);
-                        }
-                        return 0xff;
-                    case 5:
-                        if (ramEnabled) {
-                            return externalRam[(address & 0x1fff) | (ramBank << 13)] & 0xff;
-                        }
-                }
-                return 0xff;
+                return mbc.readRam(address);
             case 6: //0xc000 - 0xdfff
             case 7: //0xe000 - 0xffff
                 if(address < 0xfe00) {
@@ -589,15 +571,18 @@ public class MMU {
                 else if(address < 0xff00) return 0xff; // Unusable
                 else if(address < 0xff50){
                     if((address & ~3) == 0xff04) {
+                        machine.syncTimer();
                         return machine.timer.read(address & 3);
                     }
                     else if (address == 0xff4d && cgb) {
                         return 0x7e | (machine.doubleSpeed ? 0x80 : 0) | (pendingSpeedSwitch ? 1 : 0);
                     }
                     else if(address >= 0xff40 && address != 0xff46) {
+                        machine.syncGpu();
                         return machine.gpu.read(address);
                     }
                     else if(address >= 0xff10 && address < 0xff40) {
+                        machine.syncApu();
                         return machine.soundBoard.read(address);
                     }
                     else {
@@ -635,13 +620,92 @@ public class MMU {
         return 0xff;
     }
 
+    /**
+     * Rebuild the page table after anything affecting the memory map changed
+     * Pages that are not plain memory, or whose contents depend on more than the address, are left to the slow path
+     */
+    void remap() {
+        mapVersion++;
+        // ROM
+        int bank0 = mbc.romBank0Offset();
+        int bankN = mbc.romBankOffset();
+        for (int page = 0; page < 0x40; page++) {
+            mapPage(readPages, readOffsets, page, rom, bank0 | (page << 8));
+            mapPage(readPages, readOffsets, page | 0x40, rom, bankN | (page << 8));
+        }
+        if (!leftBios) { // The BIOS is overlaid on these
+            readPages[0] = null;
+            if (machine.mode.isCgb) {
+                for (int page = 2; page < 9; page++) {
+                    readPages[page] = null;
+                }
+            }
+        }
+        // External RAM
+        int readBase = mbc.ramReadBase();
+        int writeBase = mbc.ramWriteBase();
+        for (int page = 0; page < 0x20; page++) {
+            int offset = page << 8;
+            mapPage(readPages, readOffsets, 0xa0 | page, readBase >= 0 && readBase + offset < ramSize ? externalRam : null, readBase + offset);
+            mapPage(writePages, writeOffsets, 0xa0 | page, writeBase >= 0 && writeBase + offset < ramSize ? externalRam : null, writeBase + offset);
+        }
+        // Work RAM, and its echo up to 0xfdff
+        int bank1 = cgb ? wramBank << 12 : 0x1000;
+        for (int page = 0; page < 0x3e; page++) {
+            int offset = (page & 0x10) == 0 ? (page & 0xf) << 8 : bank1 | ((page & 0xf) << 8);
+            mapPage(readPages, readOffsets, 0xc0 + page, internalRam, offset);
+            mapPage(writePages, writeOffsets, 0xc0 + page, internalRam, offset);
+        }
+    }
+
+    /**
+     * Set one entry of a page table
+     * @param pages Page arrays of the table
+     * @param offsets Base offsets of the table
+     * @param page Index of the page, i.e. address >> 8
+     * @param memory Backing array, or null to use the slow path
+     * @param offset Index into memory of the start of the page
+     */
+    private static void mapPage(byte[][] pages, int[] offsets, int page, byte[] memory, int offset) {
+        pages[page] = memory;
+        offsets[page] = offset;
+    }
+
+    /**
+     * Find where code at a ROM address is stored, for the block cache
+     * @param address Address in 0x0000 - 0x7fff
+     * @return Index into rom, or -1 if the address is covered by the BIOS
+     */
+    int romOffset(int address) {
+        if (!leftBios && (address < 0x100 || (machine.mode.isCgb && address >= 0x200 && address < 0x900))) {
+            return -1;
+        }
+        if (address >= 0x4000) {
+            return (address & 0x3fff) | mbc.romBankOffset();
+        }
+        return address | mbc.romBank0Offset();
+    }
+
+    /**
+     * Find where code at a work RAM address is stored, for the block cache
+     * @param address Address in 0xc000 - 0xdfff
+     * @return Index into internalRam
+     */
+    int wramOffset(int address) {
+        address &= 0x1fff;
+        if (cgb && address >= 0x1000) {
+            address = (wramBank << 12) | (address & 0xfff);
+        }
+        return address;
+    }
+
     /**
      * Read 1 x 2-byte word from address
      * @param address Address of word (reads address, address + 1)
      * @return 2 bytes at [address, address + 1], little-endian
      */
     public int read16(int address){
-        return read8(address) + (read8(address + 1) << 8);
+        return read8(address) + (read8((address + 1) & 0xffff) << 8);
     }
 
     /**
@@ -650,149 +714,39 @@ public class MMU {
      * @param value Value to write
      */
     public void write8(int address, int value){
+        address &= 0xffff;
+        byte[] page = writePages[address >> 8];
+        if (page != null) {
+            int offset = writeOffsets[address >> 8] | (address & 0xff);
+            page[offset] = (byte) value;
+            if (page == internalRam && blockCache != null) {
+                blockCache.onWramWrite(offset);
+            }
+            return;
+        }
         switch(address >> 13){
-            case 0: //0x0000-0x1fff
-                switch(mbcType){
-                    case 1: // Enable RAM if low nibble is 0xa, else disable
-                    case 3:
-                    case 5:
-                        ramEnabled = (value & 0xf) == 0xa; break;
-                    case 2: // Enable/disable RAM if high address byte is even
-                        if(((address >> 8) & 1) == 0) {
-                            ramEnabled = (value & 0xf) == 0xa;
-                        }
-                        else {
-                            value &= 0xf;
-                            if(value == 0) {
-                                value = 1;
-                            }
-                            romBank = value;
-                        }
-                        break;
-                }
-                break;
-            case 1: //0x2000-0x3fff
-                switch(mbcType){
-                    case 1: // Set ROM bank, or at least lower 5 bits
-                        value &= 0x1f;
-                        if(value == 0) {
-                            value = 1;
-                        }
-                        romBank &= ~0x1f;
-                        romBank |= value;
-                        break;
-                    case 2: // Set ROM bank, but only if high address byte is odd
-                        if(((address >> 8) & 1) == 0)
-                            ramEnabled = (value & 0xf) == 0xa;
-                        else {
-                            value &= 0xf;
-                            if(value == 0) {
-                                value = 1;
-                            }
-                            romBank = value;
-                        }
-                        break;
-                    case 3: // Set ROM bank
-                        value &= 0x7f;
-                        if(value == 0) {
-                            value = 1;
-                        }
-                        romBank = value;
-                        break;
-                    case 5: // Set low 8 bits of ROM bank (allow 0)
-                        if((address & 0x1000) == 0) {
-                            romBank &= ~0xff;
-                            romBank |= value;
-                        }else{
-                            romBank &= 0xff;
-                            romBank |= (value & 1) << 8;
-                        }
-                        break;
-                }
-                romBank %= numRomBanks; // Ignore pins too high
-                break;
-            case 2: //0x4000-0x5fff
-                switch(mbcType){
-                    case 1: // Write high 2 bits of ROM bank, or RAM bank
-                        value &= 0x3;
-                        if(ramEnabled && mbc1BankMode) {
-                            ramBank = value;
-                        }
-                        romBank &= 0x1f;
-                        romBank |= value << 5;
-                        break;
-                    case 3: // Write RAM bank if <=3 or enable RTC registers
-                        if(value <= 3) {
-                            ramBank = value;
-                            mbc3RtcRegister = 0;
-                        }
-                        else if(value >= 8 && value <= 0xc) {
-                            mbc3RtcRegister = value;
-                        }
-                        break;
-                    case 5: // Write RAM bank
-                        ramBank = value & 0xf;
-                        break;
-                }
-                romBank %= numRomBanks;
-                ramBank %= Math.max(1, numRamBanks);
-                break;
-            case 3: //0x6000 - 0x7fff
-                switch(mbcType){
-                    case 1: // Set ROM/RAM mode
-                        mbc1BankMode = (value & 1) != 0;
-                        break;
-                    case 3: // Latch RTC
-                        if((mbc3RtcLatch & 1) == 0 && value == 0) {
-                            mbc3RtcLatch++;
-                        }
-                        else if((mbc3RtcLatch & 1) != 0 && value == 1) {
-                            mbc3RtcLatch = (mbc3RtcLatch + 1) & 3;
-                        }
-                        break;
+            case 0: //0x0000-0x7fff
+            case 1:
+            case 2:
+            case 3:
+            {
+                int bank0 = mbc.romBank0Offset();
+                int bankN = mbc.romBankOffset();
+                int readBase = mbc.ramReadBase();
+                int writeBase = mbc.ramWriteBase();
+                mbc.write(address, value);
+                // Only rebuild the page table if the banking actually changed, games often rewrite the same bank
+                if (bank0 != mbc.romBank0Offset() || bankN != mbc.romBankOffset()
+                        || readBase != mbc.ramReadBase() || writeBase != mbc.ramWriteBase()) {
+                    remap();
                 }
                 break;
+            }
             case 4: //0x8000 - 0x9fff
                 machine.gpu.write(address, value);
                 break;
             case 5: //0xa000 - 0xbfff
-                switch(mbcType){
-                    case 1:
-                    case 5: // Just write RAM if it's there
-                        if(ramEnabled){
-                            int erb = mbc1BankMode ? ramBank : 0;
-                            int ramAddr = (address & 0x1fff) + (erb << 13);
-                            if(ramAddr < ramSize) {
-                                externalRam[ramAddr] = (byte) (value & 0xff);
-                            }
-                        }
-                        break;
-                    case 2: // Write low 4 bits of "RAM"
-                        if(ramEnabled){
-                            externalRam[address & 0x1ff] = (byte)(value & 0xf);
-                        }
-                        break;
-                    case 3: // Either write RAM or set a register
-                        switch(mbc3RtcRegister){
-                            case 0:
-                                externalRam[(ramBank << 13) + (address & 0x1fff)] = (byte)(value & 0xff); break;
-                            case 8:
-                                seconds = value % 60; break;
-                            case 9:
-                                minutes = value % 60; break;
-                            case 10:
-                                hours = value % 24; break;
-                            case 11:
-                                days &= ~0xff; days |= value; break;
-                            case 12:
-                                days &= 0xff;
-                                days |= (value & 1) << 8;
-                                mbc3HaltRtc = (value & 0x40) != 0;
-                                mbc3DaysOverflow = (value & 0x80) != 0;
-                                break;
-                        }
-                        break;
-                }
+                mbc.writeRam(address, value);
                 break;
             case 6: // 0xc000 - 0xdfff Internal RAM
             case 7: // 0xe000 - 0xffff Echo of RAM + later data
@@ -802,21 +756,30 @@ public class MMU {
                         address = (wramBank << 12) | (address & 0xfff);
                     }
                     internalRam[address] = (byte) (value & 0xff);
+                    if (blockCache != null) {
+                        blockCache.onWramWrite(address);
+                    }
                 }
                 else if(address < 0xfea0){
                     machine.gpu.write(address, value);
                 }
                 else if(address < 0xff00) {} // Unusable
                 else if(address < 0xff50){
-                    if((address & ~3) == 0xff04)
+                    if((address & ~3) == 0xff04) {
+                        machine.syncTimer();
                         machine.timer.write(address & 3, value);
+                        machine.syncTimer(); // Reschedule the next overflow
+                    }
                     else if (address == 0xff4d) {
                         pendingSpeedSwitch = (value & 1) != 0;
                     }
                     else if(address >= 0xff40 && address != 0xff46) {
+                        machine.syncGpu();
                         machine.gpu.write(address, value);
+                        machine.syncGpu(); // Reschedule in case the LCD was switched on or off
                     }
                     else if(address >= 0xff10 && address < 0xff40) {
+                        machine.syncApu();
                         machine.soundBoard.write(address, value);
                     }
                     else{
@@ -834,6 +797,7 @@ public class MMU {
                     if (value != 0) {
                         System.out.printf("Left bios on %x\n", machine.cpu.pc);
                         leftBios = true;
+                        remap();
                     }
                 }
                 else if (address == 0xff51 && cgb) {
@@ -869,6 +833,7 @@ public class MMU {
                     if (wramBank == 0) {
                         wramBank = 1;
                     }
+                    remap();
                 }
                 else if(address < 0xff80) {} // Unusable
                 else if(address == 0xffff){ // Interrupt enable register
@@ -876,6 +841,9 @@ public class MMU {
                 }
                 else{ // 0xff80 - 0xfffe, Zero Page Ram
                     zeroPage[address & 0x7f] = (byte)(value & 0xff);
+                    if (blockCache != null) {
+                        blockCache.onHramWrite(address & 0x7f);
+                    }
                 }
                 break;
         }
@@ -888,45 +856,22 @@ public class MMU {
      */
     public void write16(int address, int value){
         write8(address, value & 0xff);
-        write8(address + 1, value >> 8);
+        write8((address + 1) & 0xffff, value >> 8);
     }
 
     /**
      * Increments the RTC, if any
      */
     public void incrementRtc() {
-        if (mbcType != 3 || (mbc3RtcLatch & 2) == 2) {
-            return;
-        }
-        if (mbc3HaltRtc) {
-            mbc3LastTime = System.currentTimeMillis();
-            return;
-        }
-        long passed = System.currentTimeMillis() - mbc3LastTime;
-        if (passed >= 1000) {
-            int secondsDelta = (int) (passed / 1000);
-            seconds += secondsDelta;
-            mbc3LastTime += secondsDelta * 1000L;
-            minutes += seconds / 60;
-            seconds %= 60;
-            hours += minutes / 60;
-            minutes %= 60;
-            days += hours / 24;
-            hours %= 24;
-            if (days > 511) {
-                mbc3DaysOverflow = true;
-                days &= 511;
-            }
-        }
+        mbc.incrementRtc();
     }
 
     /**
      * Print full debug state
      */
     public void printDebugState() {
-        System.out.printf("0x%x ROM banks, 0x%x external RAM banks\nROM bank #0x%x, RAM bank #0x%x\n", numRomBanks, numRamBanks, romBank, ramBank);
-        System.out.printf("Mbc1 bank mode? %s, Ram on? %s, RTC register 0x%x, RTC latch 0x%x, RTC halt %s", mbc1BankMode, ramEnabled, mbc3RtcRegister, mbc3RtcLatch, mbc3HaltRtc);
-        System.out.printf("RTC: %d:%02d:%02d:%02d, overflow? %s\n", days, hours, minutes, seconds, mbc3DaysOverflow);
+        System.out.printf("0x%x ROM banks, 0x%x external RAM banks\n", numRomBanks, numRamBanks);
+        mbc.printDebugState();
         System.out.printf("Left bios? %s\n", leftBios);
         System.out.printf("WRAM bank #0x%x, Upcoming speed switch? %s\n", wramBank, pendingSpeedSwitch);
         System.out.printf("HDMA? %s from 0x%x to 0x%x (0x%x / 0x%x)\n", hdmaActive, hdmaSource, hdmaDest, hdmaProgress, hdmaRemaining);
@@ -2,6 +2,7 @@ package com.funguscow.gb;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.List;
 
 /**
@@ -23,6 +24,9 @@ public class Machine {
 
     public static final int[] RAM_SIZES = {0, 1 << 11, 1 << 13, 1 << 15, 1 << 17};
 
+    // M-cycles in one full frame of 154 lines
+    public static final int FRAME_CYCLES = 154 * 114;
+
     /**
      * Specifies color mode and BIOS
      */
@@ -42,6 +46,32 @@ public class Machine {
         }
     }
 
+    /**
+     * Why a call to one of the run methods returned
+     */
+    public enum StopReason {
+        CYCLES, // The requested number of cycles was executed
+        VBLANK, // The GPU entered VBlank
+        BREAKPOINT, // The CPU reached a breakpoint
+        AUDIO_BUFFER_FULL, // A full audio buffer was handed to the speaker
+        STOPPED // The CPU executed STOP and is waiting for a keypress
+    }
+
+    /**
+     * Outcome of a call to one of the run methods
+     */
+    public static class RunResult {
+        public final long cycles;
+        public final int frames;
+        public final StopReason reason;
+
+        RunResult(long cycles, int frames, StopReason reason) {
+            this.cycles = cycles;
+            this.frames = frames;
+            this.reason = reason;
+        }
+    }
+
     // All these things are accessed by each other
     CPU cpu;
     MMU mmu;
@@ -49,6 +79,12 @@ public class Machine {
     Timer timer;
     Keypad keypad;
     SoundBoard soundBoard;
+    Scheduler scheduler;
+
+    // How often every component is caught up regardless of pending events, in m-cycles
+    private static final int TICK_CYCLES = 0x1000;
+    // Cycle each component was last brought up to date at
+    private long gpuTime, timerTime, apuTime;
 
     boolean halt;
     boolean stop;
@@ -62,17 +98,25 @@ public class Machine {
      */
     public int speedUp = 1;
 
+    // If true, never sleep or read the system clock, so that runs are deterministic and unthrottled
+    boolean headless;
+
     MachineMode mode;
 
     File saveFile;
 
     // CGB stuff
     boolean doubleSpeed;
+    private long normalCycles, normalCyclesAt; // Normal speed m-cycles counted up to the cycle of the last speed switch
     private boolean usingColor;
     private boolean monochromeCompatibility;
 
     private String baseNamePath;
 
+    private final boolean[] breakpoints = new boolean[0x10000];
+    private int numBreakpoints;
+    private boolean stopOnAudioBuffer;
+
     private static String saveExtension(File ROM) {
         String romPath = ROM.getPath();
         int dot = romPath.lastIndexOf('.');
@@ -102,56 +146,40 @@ public class Machine {
      */
     public Machine(File ROM, MachineMode mode, File saveFile) throws RomException {
         baseNamePath = saveFile.getPath();
+        scheduler = new Scheduler();
         timer = new Timer(this);
         keypad = new Keypad(this);
         soundBoard = new SoundBoard(); // Not yet used
         this.saveFile = saveFile;
         this.mode = mode;
-        byte[] header = new byte[0x150];
-        try (FileInputStream fis = new FileInputStream(ROM)) {
+        try {
+            byte[] data = Files.readAllBytes(ROM.toPath());
             // Get the header information of the ROM and use it to determine MBC type, RAM/ROM size
-            int read = fis.read(header, 0, 0x150);
-            if(read < 0x150) {
+            if(data.length < 0x150) {
                 throw new RomException("ROM file too small to be valid!");
             }
-            int cartridgeType = header[0x147] & 0xff;
-            int colorMode = header[0x143] & 0xff;
+            int cartridgeType = data[0x147] & 0xff;
+            int colorMode = data[0x143] & 0xff;
             usingColor = (mode.isCgb && (colorMode & 0x6) == 0);
             monochromeCompatibility = usingColor && (colorMode & 0x80) == 0;
-            int mbc = 0;
+            Mbc mbc = Mbc.forCartridgeType(cartridgeType);
             int romBanks;
             int ramSize = 0;
-            if(header[0x149] != 0){
-                ramSize = RAM_SIZES[header[0x149]];
+            if(data[0x149] != 0){
+                ramSize = RAM_SIZES[data[0x149]];
             }
-            System.out.printf("Cartridge type = %02x, ramkey = %02x, Color? %s (Compatibility? %s)\n", cartridgeType, header[0x149], usingColor, monochromeCompatibility);
+            System.out.printf("Cartridge type = %02x, ramkey = %02x, Color? %s (Compatibility? %s)\n", cartridgeType, data[0x149], usingColor, monochromeCompatibility);
             switch(cartridgeType){
                 case 0:
-                    ramSize = 0; break;
                 case 1:
-                    ramSize = 0;
-                case 2:
-                case 3:
-                    mbc = 1; break;
-                case 5:
-                case 6:
-                    mbc = 2; ramSize = 512; break;
-                case 0xF:
-                case 0x10:
-                case 0x11:
-                case 0x12:
-                case 0x13:
-                    mbc = 3; break;
                 case 0x19:
                 case 0x1C:
-                    ramSize = 0;
-                case 0x1A:
-                case 0x1B:
-                case 0x1D:
-                case 0x1E:
-                    mbc = 5; break;
+                    ramSize = 0; break;
+                case 5:
+                case 6:
+                    ramSize = 512; break;
             }
-            romBanks = header[0x148];
+            romBanks = data[0x148];
             if(romBanks <= 8)
                 romBanks = 1 << (1 + romBanks);
             else switch(romBanks){
@@ -165,9 +193,8 @@ public class Machine {
             // Create the memory component
             gpu = new GPU(this, usingColor, monochromeCompatibility);
             mmu = new MMU(this, mbc, romBanks, (ramSize + 0x1fff) >> 13, ramSize, usingColor);
-            // Load this ROM file into it
-            mmu.loadRom(header, 0, 0x150);
-            mmu.loadRom(fis,  0x150, (romBanks << 14) - 0x150);
+            // Give it this ROM, shared with any other machine running the same one
+            mmu.setRom(RomCache.share(data, romBanks << 14), true);
             try {
                 loadExternal();
             } catch (RomException re) {
@@ -178,6 +205,8 @@ public class Machine {
             throw new RomException(e);
         }
         cpu = new CPU(mode, mmu, null, null, true);
+        syncAll();
+        scheduler.scheduleIn(Scheduler.TICK, TICK_CYCLES);
     }
 
     /**
@@ -195,8 +224,9 @@ public class Machine {
      */
     public boolean trySpeedSwitch() {
         if (usingColor) {
-            doubleSpeed = !doubleSpeed;
+            setDoubleSpeed(!doubleSpeed);
             stop = false;
+            scheduleApu();
             return true;
         }
         return false;
@@ -206,18 +236,269 @@ public class Machine {
      * Perform one instruction cycle
      */
     public void cycle(){
-        while (stop) {
+        while (stop && !headless) {
             try {
                 Thread.sleep(16);
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
+        step();
+    }
+
+    /**
+     * Execute one instruction and handle any events that became due
+     */
+    private void step() {
         int mCycles = cpu.performOp(this); // Execute an opcode after checking for interrupts
-        gpu.increment(mCycles, soundBoard.silent || soundBoard.speaker == null); // Increment the GPU's state
-        timer.increment(mCycles); // Increment the timer's state
-        soundBoard.step(mCycles, speedUp, doubleSpeed);
-        mmu.incrementRtc();
+        long now = scheduler.now + mCycles;
+        long deadline = scheduler.nextDeadline();
+        if (halt && !stop && deadline > now && (interruptsEnabled & interruptsFired & 0x1f) == 0) {
+            // Nothing can wake the CPU before the next event, so skip straight to it
+            cpu.idle((int) (deadline - now));
+            now = deadline;
+        }
+        scheduler.now = now;
+        while (scheduler.nextDeadline() <= now) {
+            runEvent(scheduler.nextEvent());
+        }
+    }
+
+    /**
+     * Run instructions until a given cycle count is reached
+     * @param cycle Absolute m-cycle count to stop at or after
+     */
+    public void runUntil(long cycle) {
+        while (scheduler.now < cycle) {
+            cycle();
+        }
+    }
+
+    /**
+     * Run for one frame's worth of cycles, whether or not the LCD is on
+     * Stops early at a breakpoint, on STOP, or on a full audio buffer if enabled
+     * @return What was run and why it stopped
+     */
+    public RunResult runFrame() {
+        return run(FRAME_CYCLES, false);
+    }
+
+    /**
+     * Run for a number of cycles
+     * Stops early at a breakpoint, on STOP, or on a full audio buffer if enabled
+     * @param cycles Number of m-cycles to run for
+     * @return What was run and why it stopped
+     */
+    public RunResult runCycles(long cycles) {
+        return run(cycles, false);
+    }
+
+    /**
+     * Run until the GPU next enters VBlank
+     * Stops early at a breakpoint, on STOP, or on a full audio buffer if enabled,
+     * and after a frame's worth of cycles if the LCD is off
+     * @return What was run and why it stopped
+     */
+    public RunResult runUntilVBlank() {
+        return run(FRAME_CYCLES, true);
+    }
+
+    /**
+     * Inner loop of the run methods
+     * @param cycles Maximum number of m-cycles to run for
+     * @param untilVBlank If true, stop as soon as VBlank is entered
+     * @return What was run and why it stopped
+     */
+    private RunResult run(long cycles, boolean untilVBlank) {
+        long start = scheduler.now;
+        long end = start + cycles;
+        int startFrames = gpu.frames;
+        int startBuffers = soundBoard.buffersOutput;
+        StopReason reason = StopReason.CYCLES;
+        boolean first = true; // Never stop on the breakpoint we were resumed from
+        while (scheduler.now < end) {
+            if (stop) {
+                reason = StopReason.STOPPED;
+                break;
+            }
+            if (numBreakpoints > 0 && !first && breakpoints[cpu.pc]) {
+                reason = StopReason.BREAKPOINT;
+                break;
+            }
+            first = false;
+            step();
+            if (untilVBlank && gpu.frames != startFrames) {
+                reason = StopReason.VBLANK;
+                break;
+            }
+            if (stopOnAudioBuffer && soundBoard.buffersOutput != startBuffers) {
+                reason = StopReason.AUDIO_BUFFER_FULL;
+                break;
+            }
+        }
+        return new RunResult(scheduler.now - start, gpu.frames - startFrames, reason);
+    }
+
+    /**
+     * Set a breakpoint for the run methods to stop at
+     * @param address PC to stop before executing
+     */
+    public void addBreakpoint(int address) {
+        address &= 0xffff;
+        if (!breakpoints[address]) {
+            breakpoints[address] = true;
+            numBreakpoints++;
+        }
+    }
+
+    /**
+     * Remove a breakpoint set by addBreakpoint
+     * @param address PC that was being stopped at
+     */
+    public void removeBreakpoint(int address) {
+        address &= 0xffff;
+        if (breakpoints[address]) {
+            breakpoints[address] = false;
+            numBreakpoints--;
+        }
+    }
+
+    /**
+     * Choose whether the run methods return each time a buffer of audio is output
+     * @param stopOnAudioBuffer If true, stop with AUDIO_BUFFER_FULL
+     */
+    public void setStopOnAudioBuffer(boolean stopOnAudioBuffer) {
+        this.stopOnAudioBuffer = stopOnAudioBuffer;
+    }
+
+    /**
+     * Choose which frames the GPU composes, e.g. only those that can be shown while fast forwarding
+     * @param frameSkip Frame skip policy
+     * @param interval With GPU.FrameSkip.INTERVAL, render one in this many frames
+     */
+    public void setFrameSkip(GPU.FrameSkip frameSkip, int interval) {
+        gpu.setFrameSkip(frameSkip, interval);
+    }
+
+    /**
+     * Compose frames on a separate thread while the next frame is emulated
+     * @param threaded True to render on a worker thread, false to render each line as it is reached
+     */
+    public void setThreadedRendering(boolean threaded) {
+        gpu.setThreadedRendering(threaded);
+    }
+
+    /**
+     * Switch headless mode on or off
+     * In headless mode emulation is never throttled, STOP does not block, and the MBC3 RTC
+     * counts emulated time from the cycle counter instead of the system clock
+     * @param headless If true, run headless
+     */
+    public void setHeadless(boolean headless) {
+        this.headless = headless;
+        mmu.mbc.resetRtcClock();
+    }
+
+    /**
+     *
+     * @return Number of m-cycles executed since power on
+     */
+    public long getCycles() {
+        return scheduler.now;
+    }
+
+    /**
+     *
+     * @return Number of m-cycles since power on as if always at normal speed, so double speed m-cycles count for half
+     */
+    long getNormalSpeedCycles() {
+        return normalCycles + ((scheduler.now - normalCyclesAt) >> (doubleSpeed ? 1 : 0));
+    }
+
+    /**
+     * Change speed, keeping the normal speed cycle count continuous
+     * @param doubleSpeed True for double speed
+     */
+    private void setDoubleSpeed(boolean doubleSpeed) {
+        normalCycles = getNormalSpeedCycles();
+        normalCyclesAt = scheduler.now;
+        this.doubleSpeed = doubleSpeed;
+    }
+
+    /**
+     * Handle an event that is due
+     * @param event Scheduler event id
+     */
+    private void runEvent(int event) {
+        switch (event) {
+            case Scheduler.GPU:
+                syncGpu();
+                break;
+            case Scheduler.TIMER:
+                syncTimer();
+                break;
+            case Scheduler.APU:
+                syncApu();
+                break;
+            case Scheduler.TICK:
+                syncGpu();
+                syncTimer();
+                scheduleApu(); // Only rescheduled, in case speedUp or muting changed
+                mmu.incrementRtc();
+                scheduler.scheduleIn(Scheduler.TICK, TICK_CYCLES);
+                break;
+        }
+    }
+
+    /**
+     * Bring the GPU up to the current cycle and schedule its next mode change
+     */
+    void syncGpu() {
+        long now = scheduler.now;
+        gpu.increment((int) (now - gpuTime), soundBoard.silent || soundBoard.speaker == null);
+        gpuTime = now;
+        scheduler.scheduleIn(Scheduler.GPU, gpu.cyclesUntilUpdate());
+    }
+
+    /**
+     * Bring the timer up to the current cycle and schedule its next interrupt
+     */
+    void syncTimer() {
+        long now = scheduler.now;
+        timer.increment((int) (now - timerTime));
+        timerTime = now;
+        scheduler.scheduleIn(Scheduler.TIMER, timer.cyclesUntilInterrupt());
+    }
+
+    /**
+     * Bring the APU up to the current cycle and schedule when its buffer will be full
+     * Otherwise it is only caught up when its registers are accessed or state is saved
+     */
+    void syncApu() {
+        long now = scheduler.now;
+        while (apuTime < now) { // It may have been left alone for a very long time
+            int cycles = (int) Math.min(now - apuTime, Integer.MAX_VALUE);
+            soundBoard.step(cycles, speedUp);
+            apuTime += cycles;
+        }
+        scheduleApu();
+    }
+
+    /**
+     * Reschedule the APU's next full buffer from when it was last brought up to date
+     */
+    private void scheduleApu() {
+        long cycles = soundBoard.cyclesUntilBufferFull(speedUp);
+        scheduler.schedule(Scheduler.APU, cycles < 0 ? Scheduler.NEVER : apuTime + cycles);
+    }
+
+    /**
+     * Bring every component up to the current cycle
+     */
+    private void syncAll() {
+        syncGpu();
+        syncTimer();
+        syncApu();
     }
 
     /**
@@ -242,6 +523,7 @@ public class Machine {
      */
     public void test(InputStream source) {
         mmu.leftBios = true;
+        mmu.remap();
         List<OpcodeTest> tests = OpcodeTest.parse(source);
         for (int i = 0; i < tests.size(); i++) {
             OpcodeTest test = tests.get(i);
@@ -268,8 +550,10 @@ public class Machine {
      * @param speaker Speaker to attach to the SoundBoard
      */
     public void attachSpeaker(SoundBoard.Speaker speaker) {
+        syncApu(); // Cycles so far belong to the old speaker, or to none
         soundBoard.speaker = speaker;
         soundBoard.setSpeaker(speaker);
+        scheduleApu();
     }
 
     /**
@@ -301,6 +585,7 @@ public class Machine {
      * @return The color palette used for background in CGB mode
      */
     public int[] getCgbBgPalette() {
+        gpu.exposeCgbPalettes();
         return gpu.bgPalColor;
     }
 
@@ -309,15 +594,31 @@ public class Machine {
      * @return The color palette used for sprites in CGB mode
      */
     public int[] getCgbObPalette() {
+        gpu.exposeCgbPalettes();
         return gpu.obPalColor;
     }
 
+    /**
+     * Dynamic rate control, to be called about once a frame when something other than sound output
+     * paces emulation, like the display
+     * @param speed How fast emulation is run relative to real time, before speedUp
+     * @param queued Number of samples per channel the speaker currently has queued
+     * @param capacity Number of samples per channel the speaker can queue
+     */
+    public void controlAudioRate(double speed, int queued, int capacity) {
+        syncApu(); // Samples so far were made at the old rate
+        soundBoard.controlRate(speed, queued, capacity);
+        scheduleApu();
+    }
+
     /**
      * Sets the mute status of the SoundBoard
      * @param muted True if the SoundBoard should be muted
      */
     public void mute(boolean muted) {
+        syncApu(); // Cycles so far are played, or not, as they were before
         this.soundBoard.silent = muted;
+        scheduleApu();
     }
 
     /**
@@ -326,6 +627,7 @@ public class Machine {
      * @throws RomException Error writing state
      */
     public void saveState(OutputStream os) throws RomException {
+        syncAll();
         try (DataOutputStream dos = new DataOutputStream(os)) {
             dos.write("STAT".getBytes(StandardCharsets.UTF_8));
             dos.writeBoolean(usingColor);
@@ -371,7 +673,7 @@ public class Machine {
             stop = dis.readBoolean();
             interruptsEnabled = dis.readInt();
             interruptsFired = dis.readInt();
-            doubleSpeed = dis.readBoolean();
+            setDoubleSpeed(dis.readBoolean());
             boolean reading = true;
             while (reading) {
                 if (dis.read(buffer) < 4) {
@@ -404,6 +706,8 @@ public class Machine {
                         throw new RomException(String.format("Unidentified key %s", key));
                 }
             }
+            gpuTime = timerTime = apuTime = scheduler.now;
+            syncAll();
         } catch (Exception e) {
             throw new RomException(e);
         }
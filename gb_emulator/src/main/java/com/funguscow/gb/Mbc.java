@@ -0,0 +1,205 @@
+package com.funguscow.gb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Memory bank controller of a cartridge, owns the bank registers and anything else on the cartridge
+ * besides ROM and RAM themselves
+ */
+abstract class Mbc {
+
+    MMU mmu;
+    int numRomBanks;
+    int numRamBanks;
+    int ramSize;
+
+    int romBank = 1;
+    int ramBank;
+    boolean ramEnabled;
+
+    /**
+     * Pick the controller for a cartridge
+     * @param cartridgeType Cartridge type from byte 0x147 of the header
+     * @return A new controller of the right type, or a plain ROM one for unsupported types
+     */
+    static Mbc forCartridgeType(int cartridgeType) {
+        switch (cartridgeType) {
+            case 0x1:
+            case 0x2:
+            case 0x3:
+                return new Mbc1();
+            case 0x5:
+            case 0x6:
+                return new Mbc2();
+            case 0xF:
+            case 0x10:
+            case 0x11:
+            case 0x12:
+            case 0x13:
+                return new Mbc3();
+            case 0x19:
+            case 0x1A:
+            case 0x1B:
+            case 0x1C:
+            case 0x1D:
+            case 0x1E:
+                return new Mbc5();
+            default:
+                return new RomOnly();
+        }
+    }
+
+    /**
+     * Connect to the MMU holding the cartridge's memory
+     * @param mmu MMU
+     * @param numRomBanks Number of 16KB ROM banks
+     * @param numRamBanks Number of 8KB RAM banks
+     * @param ramSize Size in bytes of external RAM
+     */
+    void attach(MMU mmu, int numRomBanks, int numRamBanks, int ramSize) {
+        this.mmu = mmu;
+        this.numRomBanks = numRomBanks;
+        this.numRamBanks = numRamBanks;
+        this.ramSize = ramSize;
+    }
+
+    /**
+     *
+     * @return MBC number stored in save states
+     */
+    abstract int type();
+
+    /**
+     * Handle a write to the ROM area, 0x0000 - 0x7fff
+     * @param address Address written
+     * @param value Value written
+     */
+    abstract void write(int address, int value);
+
+    /**
+     *
+     * @return Index into ROM of what is mapped at 0x0000
+     */
+    int romBank0Offset() {
+        return 0;
+    }
+
+    /**
+     *
+     * @return Index into ROM of what is mapped at 0x4000
+     */
+    int romBankOffset() {
+        return romBank << 14;
+    }
+
+    /**
+     *
+     * @return Index into external RAM of what is read at 0xa000, or -1 if reads need readRam
+     */
+    int ramReadBase() {
+        return -1;
+    }
+
+    /**
+     *
+     * @return Index into external RAM of what is written at 0xa000, or -1 if writes need writeRam
+     */
+    int ramWriteBase() {
+        return -1;
+    }
+
+    /**
+     * Read from 0xa000 - 0xbfff where it is not plain RAM
+     * @param address Address read
+     * @return Byte read
+     */
+    int readRam(int address) {
+        return 0xff;
+    }
+
+    /**
+     * Write to 0xa000 - 0xbfff where it is not plain RAM
+     * @param address Address written
+     * @param value Value written
+     */
+    void writeRam(int address, int value) {
+    }
+
+    /**
+     * Bring any real time clock up to date
+     */
+    void incrementRtc() {
+    }
+
+    /**
+     * Restart any real time clock's timekeeping from the current time
+     */
+    void resetRtcClock() {
+    }
+
+    /**
+     *
+     * @return Value of the MBC1 banking mode register, false for others
+     */
+    boolean bankMode() {
+        return false;
+    }
+
+    /**
+     * Restore the MBC1 banking mode register, ignored by others
+     * @param bankMode Banking mode
+     */
+    void setBankMode(boolean bankMode) {
+    }
+
+    /**
+     * Save the bank registers
+     * @param dos Dest stream
+     * @throws IOException Errors writing
+     */
+    void saveRegisters(DataOutputStream dos) throws IOException {
+        dos.writeInt(romBank);
+        dos.writeInt(ramBank);
+        dos.writeBoolean(bankMode());
+        dos.writeBoolean(ramEnabled);
+    }
+
+    /**
+     * Load the bank registers
+     * @param dis Source stream
+     * @throws IOException Errors reading
+     */
+    void loadRegisters(DataInputStream dis) throws IOException {
+        romBank = dis.readInt();
+        ramBank = dis.readInt();
+        setBankMode(dis.readBoolean());
+        ramEnabled = dis.readBoolean();
+    }
+
+    /**
+     * Save any real time clock, as a keyed chunk
+     * @param dos Dest stream
+     * @throws IOException Errors writing
+     */
+    void saveRtc(DataOutputStream dos) throws IOException {
+    }
+
+    /**
+     * Load a real time clock chunk
+     * @param dis Source stream
+     * @throws IOException Errors reading, or if this cartridge has no clock
+     */
+    void loadRtc(DataInputStream dis) throws IOException {
+        throw new IOException("Cartridge has no RTC");
+    }
+
+    /**
+     * Print debug state of the controller
+     */
+    void printDebugState() {
+        System.out.printf("MBC #%d, ROM bank #0x%x, RAM bank #0x%x, Ram on? %s\n", type(), romBank, ramBank, ramEnabled);
+    }
+
+}
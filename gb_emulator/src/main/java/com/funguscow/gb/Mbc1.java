@@ -0,0 +1,98 @@
+package com.funguscow.gb;
+
+/**
+ * MBC1, up to 2MB ROM and 32KB RAM sharing two bank bits
+ */
+class Mbc1 extends Mbc {
+
+    private boolean bankMode;
+
+    @Override
+    int type() {
+        return 1;
+    }
+
+    @Override
+    void write(int address, int value) {
+        switch (address >> 13) {
+            case 0: // Enable RAM if low nibble is 0xa, else disable
+                ramEnabled = (value & 0xf) == 0xa;
+                break;
+            case 1: // Set ROM bank, or at least lower 5 bits
+                value &= 0x1f;
+                if (value == 0) {
+                    value = 1;
+                }
+                romBank &= ~0x1f;
+                romBank |= value;
+                romBank %= numRomBanks; // Ignore pins too high
+                break;
+            case 2: // Write high 2 bits of ROM bank, or RAM bank
+                value &= 0x3;
+                if (ramEnabled && bankMode) {
+                    ramBank = value;
+                }
+                romBank &= 0x1f;
+                romBank |= value << 5;
+                romBank %= numRomBanks;
+                ramBank %= Math.max(1, numRamBanks);
+                break;
+            case 3: // Set ROM/RAM mode
+                bankMode = (value & 1) != 0;
+                break;
+        }
+    }
+
+    @Override
+    int romBank0Offset() {
+        return bankMode ? (romBank & ~0x1f) << 14 : 0;
+    }
+
+    @Override
+    int ramReadBase() {
+        return ramEnabled ? (bankMode ? ramBank : 0) << 13 : -1;
+    }
+
+    @Override
+    int ramWriteBase() {
+        return ramReadBase();
+    }
+
+    @Override
+    int readRam(int address) {
+        if (ramEnabled) {
+            int ramAddr = (address & 0x1fff) | ((bankMode ? ramBank : 0) << 13);
+            if (ramAddr < ramSize) {
+                return mmu.externalRam[ramAddr] & 0xff;
+            }
+        }
+        return 0xff;
+    }
+
+    @Override
+    void writeRam(int address, int value) {
+        if (ramEnabled) {
+            int ramAddr = (address & 0x1fff) | ((bankMode ? ramBank : 0) << 13);
+            if (ramAddr < ramSize) {
+                mmu.externalRam[ramAddr] = (byte) value;
+            }
+        }
+    }
+
+    @Override
+    boolean bankMode() {
+        return bankMode;
+    }
+
+    @Override
+    void setBankMode(boolean bankMode) {
+        this.bankMode = bankMode;
+    }
+
+    @Override
+    void printDebugState() {
+        super.printDebugState();
+        System.out.printf("Mbc1 bank mode? %s\n", bankMode);
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.funguscow.gb;
+
+/**
+ * MBC2, up to 256KB ROM and 512 x 4 bits of built in RAM
+ */
+class Mbc2 extends Mbc {
+
+    @Override
+    int type() {
+        return 2;
+    }
+
+    @Override
+    void write(int address, int value) {
+        if (address >= 0x4000) {
+            return;
+        }
+        if (((address >> 8) & 1) == 0) { // Enable/disable RAM if high address byte is even
+            ramEnabled = (value & 0xf) == 0xa;
+        } else { // Otherwise set ROM bank
+            value &= 0xf;
+            if (value == 0) {
+                value = 1;
+            }
+            romBank = value % numRomBanks;
+        }
+    }
+
+    @Override
+    int readRam(int address) {
+        if (ramEnabled) {
+            return 0xf0 | (mmu.externalRam[address & 0x1ff] & 0xf);
+        }
+        return 0xff;
+    }
+
+    @Override
+    void writeRam(int address, int value) {
+        if (ramEnabled) {
+            mmu.externalRam[address & 0x1ff] = (byte) (value & 0xf);
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.funguscow.gb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MBC3, up to 2MB ROM and 32KB RAM, with an optional real time clock
+ */
+class Mbc3 extends Mbc {
+
+    private int rtcRegister;
+    private int rtcLatch;
+    private long lastTime;
+    private int seconds;
+    private int minutes;
+    private int hours;
+    private int days;
+    private boolean haltRtc, daysOverflow;
+
+    @Override
+    int type() {
+        return 3;
+    }
+
+    @Override
+    void write(int address, int value) {
+        switch (address >> 13) {
+            case 0: // Enable RAM if low nibble is 0xa, else disable
+                ramEnabled = (value & 0xf) == 0xa;
+                break;
+            case 1: // Set ROM bank
+                value &= 0x7f;
+                if (value == 0) {
+                    value = 1;
+                }
+                romBank = value % numRomBanks;
+                break;
+            case 2: // Write RAM bank if <=3 or enable RTC registers
+                if (value <= 3) {
+                    ramBank = value % Math.max(1, numRamBanks);
+                    rtcRegister = 0;
+                } else if (value >= 8 && value <= 0xc) {
+                    rtcRegister = value;
+                }
+                break;
+            case 3: // Latch RTC
+                if ((rtcLatch & 1) == 0 && value == 0) {
+                    rtcLatch++;
+                } else if ((rtcLatch & 1) != 0 && value == 1) {
+                    rtcLatch = (rtcLatch + 1) & 3;
+                }
+                break;
+        }
+    }
+
+    @Override
+    int ramReadBase() {
+        return rtcRegister == 0 ? ramBank << 13 : -1;
+    }
+
+    @Override
+    int ramWriteBase() {
+        return ramReadBase();
+    }
+
+    @Override
+    int readRam(int address) {
+        if (rtcRegister != 0) {
+            incrementRtc();
+        }
+        switch (rtcRegister) {
+            case 0:
+                return mmu.externalRam[(ramBank << 13) | (address & 0x1fff)] & 0xff;
+            case 8:
+                return seconds;
+            case 9:
+                return minutes;
+            case 10:
+                return hours;
+            case 11:
+                return days & 0xff;
+            case 12:
+                return (days >> 8) | (haltRtc ? 0x40 : 0) | (daysOverflow ? 0x80 : 0);
+        }
+        return 0xff;
+    }
+
+    @Override
+    void writeRam(int address, int value) {
+        if (rtcRegister != 0) {
+            incrementRtc();
+        }
+        switch (rtcRegister) {
+            case 0:
+                mmu.externalRam[(ramBank << 13) | (address & 0x1fff)] = (byte) value;
+                break;
+            case 8:
+                seconds = value % 60;
+                break;
+            case 9:
+                minutes = value % 60;
+                break;
+            case 10:
+                hours = value % 24;
+                break;
+            case 11:
+                days &= ~0xff;
+                days |= value;
+                break;
+            case 12:
+                days &= 0xff;
+                days |= (value & 1) << 8;
+                haltRtc = (value & 0x40) != 0;
+                daysOverflow = (value & 0x80) != 0;
+                break;
+        }
+    }
+
+    /**
+     *
+     * @return Current time in ms for the RTC, emulated time derived from the normal speed cycle count if headless
+     */
+    private long rtcClock() {
+        Machine machine = mmu.machine;
+        if (machine.headless) {
+            return (machine.getNormalSpeedCycles() * 1000) >> 20;
+        }
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    void resetRtcClock() {
+        lastTime = rtcClock();
+    }
+
+    @Override
+    void incrementRtc() {
+        if ((rtcLatch & 2) == 2) {
+            return;
+        }
+        long now = rtcClock();
+        if (haltRtc) {
+            lastTime = now;
+            return;
+        }
+        long passed = now - lastTime;
+        if (passed >= 1000) {
+            int secondsDelta = (int) (passed / 1000);
+            seconds += secondsDelta;
+            lastTime += secondsDelta * 1000L;
+            minutes += seconds / 60;
+            seconds %= 60;
+            hours += minutes / 60;
+            minutes %= 60;
+            days += hours / 24;
+            hours %= 24;
+            if (days > 511) {
+                daysOverflow = true;
+                days &= 511;
+            }
+        }
+    }
+
+    @Override
+    void saveRtc(DataOutputStream dos) throws IOException {
+        dos.write("RTC ".getBytes(StandardCharsets.UTF_8));
+        dos.writeInt(days);
+        dos.writeInt(hours);
+        dos.writeInt(minutes);
+        dos.writeInt(seconds);
+        dos.writeLong(lastTime);
+        dos.writeByte(rtcRegister);
+        dos.writeByte(rtcLatch);
+        dos.writeBoolean(haltRtc);
+        dos.writeBoolean(daysOverflow);
+    }
+
+    @Override
+    void loadRtc(DataInputStream dis) throws IOException {
+        days = dis.readInt();
+        hours = dis.readInt();
+        minutes = dis.readInt();
+        seconds = dis.readInt();
+        lastTime = dis.readLong();
+        rtcRegister = dis.readByte() & 0xff;
+        rtcLatch = dis.readByte() & 0xff;
+        haltRtc = dis.readBoolean();
+        daysOverflow = dis.readBoolean();
+        if (mmu.machine.headless) { // Saved time is from a different clock, so just resume from now
+            resetRtcClock();
+        }
+        incrementRtc();
+    }
+
+    @Override
+    void printDebugState() {
+        super.printDebugState();
+        System.out.printf("RTC register 0x%x, RTC latch 0x%x, RTC halt %s\n", rtcRegister, rtcLatch, haltRtc);
+        System.out.printf("RTC: %d:%02d:%02d:%02d, overflow? %s\n", days, hours, minutes, seconds, daysOverflow);
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.funguscow.gb;
+
+/**
+ * MBC5, up to 8MB ROM and 128KB RAM
+ */
+class Mbc5 extends Mbc {
+
+    @Override
+    int type() {
+        return 5;
+    }
+
+    @Override
+    void write(int address, int value) {
+        switch (address >> 13) {
+            case 0: // Enable RAM if low nibble is 0xa, else disable
+                ramEnabled = (value & 0xf) == 0xa;
+                break;
+            case 1: // Set low 8 bits of ROM bank (allow 0), or the 9th bit
+                if ((address & 0x1000) == 0) {
+                    romBank &= ~0xff;
+                    romBank |= value;
+                } else {
+                    romBank &= 0xff;
+                    romBank |= (value & 1) << 8;
+                }
+                romBank %= numRomBanks; // Ignore pins too high
+                break;
+            case 2: // Write RAM bank
+                ramBank = (value & 0xf) % Math.max(1, numRamBanks);
+                break;
+        }
+    }
+
+    @Override
+    int ramReadBase() {
+        return ramEnabled ? ramBank << 13 : -1;
+    }
+
+    @Override
+    int ramWriteBase() {
+        return ramReadBase();
+    }
+
+    @Override
+    int readRam(int address) {
+        int ramAddr = (address & 0x1fff) | (ramBank << 13);
+        if (ramEnabled && ramAddr < ramSize) {
+            return mmu.externalRam[ramAddr] & 0xff;
+        }
+        return 0xff;
+    }
+
+    @Override
+    void writeRam(int address, int value) {
+        int ramAddr = (address & 0x1fff) | (ramBank << 13);
+        if (ramEnabled && ramAddr < ramSize) {
+            mmu.externalRam[ramAddr] = (byte) value;
+        }
+    }
+
+}
@@ -52,7 +52,7 @@ public class OpcodeTest {
             int address = entry.getKey();
             int value = entry.getValue();
             if (address < 0x8000) { // ROM
-                mmu.rom[address] = (byte)value;
+                mmu.writeRom(address, value);
             }
             else if (address < 0xA000) { // VRAM (really??)
                 machine.gpu.vram[address - 0x8000] = (byte)value;
@@ -67,6 +67,8 @@ public class OpcodeTest {
                 mmu.zeroPage[address - 0xFF80] = (byte)value;
             }
         }
+        cpu.flushBlocks(); // Memory was written directly rather than through the MMU
+        machine.gpu.syncRenderer();
         cpu.a = begin.a;
         cpu.b = begin.b;
         cpu.c = begin.c;
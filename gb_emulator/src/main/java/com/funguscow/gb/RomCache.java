@@ -0,0 +1,57 @@
+package com.funguscow.gb;
+
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of ROM images, so that machines running the same cartridge share one copy
+ * Images are keyed by a hash of their contents and only kept alive by the machines using them
+ */
+final class RomCache {
+
+    private static final Map<String, WeakReference<byte[]>> images = new HashMap<>();
+
+    private RomCache() {
+    }
+
+    /**
+     * Get the shared image for some ROM data, which must never be written to
+     * @param data Contents of the ROM file, not kept by the cache
+     * @param size Size of the image, padded with zeroes or truncated to this if the file differs
+     * @return Shared image of exactly size bytes
+     */
+    static synchronized byte[] share(byte[] data, int size) {
+        String key = hash(data) + ":" + size;
+        WeakReference<byte[]> ref = images.get(key);
+        byte[] image = ref == null ? null : ref.get();
+        if (image == null) {
+            images.values().removeIf(r -> r.get() == null);
+            image = Arrays.copyOf(data, size);
+            images.put(key, new WeakReference<>(image));
+        }
+        return image;
+    }
+
+    /**
+     *
+     * @param data Bytes to hash
+     * @return Hex SHA-256 digest of data
+     */
+    private static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) { // Every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
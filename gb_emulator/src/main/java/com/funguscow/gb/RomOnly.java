@@ -0,0 +1,17 @@
+package com.funguscow.gb;
+
+/**
+ * Cartridge with no bank controller, just 32KB of ROM
+ */
+class RomOnly extends Mbc {
+
+    @Override
+    int type() {
+        return 0;
+    }
+
+    @Override
+    void write(int address, int value) {
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.funguscow.gb;
+
+/**
+ * Keeps the absolute m-cycle count of the machine and, for each component, the cycle at which it next
+ * needs to be brought up to date because it will do something observable (e.g. raise an interrupt)
+ * Deadlines are kept in a small binary min-heap of event ids so the earliest one can be read directly
+ */
+class Scheduler {
+
+    static final int GPU = 0; // Next LCD mode change
+    static final int TIMER = 1; // Next TIMA overflow interrupt
+    static final int APU = 2; // Next full audio buffer to hand to the speaker
+    static final int TICK = 3; // Periodic catch-up of the GPU and timer, also drives the RTC
+    static final int EVENT_COUNT = 4;
+
+    static final long NEVER = Long.MAX_VALUE;
+
+    // Cycle at which the instruction currently executing started
+    long now;
+
+    private final long[] deadlines = new long[EVENT_COUNT];
+    private final int[] heap = new int[EVENT_COUNT];
+    private final int[] positions = new int[EVENT_COUNT];
+
+    Scheduler() {
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            deadlines[i] = NEVER;
+            heap[i] = i;
+            positions[i] = i;
+        }
+    }
+
+    /**
+     *
+     * @return Cycle of the earliest pending event
+     */
+    long nextDeadline() {
+        return deadlines[heap[0]];
+    }
+
+    /**
+     *
+     * @return Id of the earliest pending event
+     */
+    int nextEvent() {
+        return heap[0];
+    }
+
+    /**
+     * Set when an event is next due, replacing any previous deadline for it
+     * @param event Event id
+     * @param when Absolute cycle, or NEVER
+     */
+    void schedule(int event, long when) {
+        long previous = deadlines[event];
+        deadlines[event] = when;
+        if (when < previous) {
+            siftUp(positions[event]);
+        } else {
+            siftDown(positions[event]);
+        }
+    }
+
+    /**
+     * Set when an event is next due relative to now
+     * @param event Event id
+     * @param cycles Cycles from now, or negative for never
+     */
+    void scheduleIn(int event, long cycles) {
+        schedule(event, cycles < 0 ? NEVER : now + cycles);
+    }
+
+    private void siftUp(int index) {
+        int event = heap[index];
+        long when = deadlines[event];
+        while (index > 0) {
+            int parent = (index - 1) >> 1;
+            if (deadlines[heap[parent]] <= when) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(event, index);
+    }
+
+    private void siftDown(int index) {
+        int event = heap[index];
+        long when = deadlines[event];
+        while (true) {
+            int child = (index << 1) + 1;
+            if (child >= EVENT_COUNT) {
+                break;
+            }
+            if (child + 1 < EVENT_COUNT && deadlines[heap[child + 1]] < deadlines[heap[child]]) {
+                child++;
+            }
+            if (deadlines[heap[child]] >= when) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(event, index);
+    }
+
+    private void place(int event, int index) {
+        heap[index] = event;
+        positions[event] = index;
+    }
+
+}
@@ -11,6 +11,7 @@ import java.nio.charset.StandardCharsets;
 public class SoundBoard {
 
     private static final int BUFFER_SIZE = 2048;
+    public static final double MAX_RATE_DEVIATION = 0.005; // Largest fraction dynamic rate control changes the sample rate by
     private static final byte[] DUTY = {(byte)1, (byte)0x81, (byte)0x87, (byte)0x7E};
 
     public static class SpeakerFormat {
@@ -32,6 +33,8 @@ public class SoundBoard {
          *
          * If the speaker must wait before it can accept more sound
          * input, it is responsible for blocking within this method!!!!
+         * A speaker that queues samples and never blocks leaves pacing
+         * the emulator to the frontend instead
          *
          * Either left or right may be null if getFormat returns
          * a format indicating that channel is unused
@@ -57,6 +60,9 @@ public class SoundBoard {
     private final int bufferSize;
 
     private byte[] leftBuffer, rightBuffer;
+    private BlipBuffer leftBlip, rightBlip;
+    private int timeDivisor = 1; // Speedup factor of the last step, to place steps between samples
+    private int sampleRate; // Samples made per emulated second, the speaker's rate unless rate control changes it
 
     // Channel 1
     // 0xFF10 - NR10
@@ -149,6 +155,7 @@ public class SoundBoard {
     // Global
     private int cycleCounter;
     private int bufferPtr;
+    int buffersOutput; // Number of full buffers handed to the speaker
 
     public boolean silent;
 
@@ -168,7 +175,10 @@ public class SoundBoard {
         this.speaker = speaker;
         leftBuffer = rightBuffer = null;
         if (speaker != null) {
+            leftBlip = new BlipBuffer(bufferSize);
+            rightBlip = new BlipBuffer(bufferSize);
             format = speaker.getFormat();
+            sampleRate = format.sampleRate;
             if (format.leftChannel) {
                 leftBuffer = new byte[bufferSize];
             }
@@ -412,85 +422,187 @@ public class SoundBoard {
                 waveform[address - 0xFF30] = (byte)value;
                 break;
         }
+        if (speaker != null && !silent) {
+            updateOutput();
+        }
     }
 
     /**
      * Increment the internal timer and update values
+     * Channels are advanced in closed form between frame sequencer events, so the cost
+     * depends on the number of events rather than the number of cycles
      * @param cycles Number of cycles since last call to this method
      */
     private void incrementTimer(int cycles) {
         while (cycles > 0) {
-            cycleCounter++;
-            cycles --;
-            if (--frequencyCounter1 <= 0) {
-                frequencyCounter1 = 2048 - frequencyDivisor1;
-                waveCounter1 = (waveCounter1 + 1) & 7;
-            }
-            if (--frequencyCounter2 <= 0) {
-                frequencyCounter2 = 2048 - frequencyDivisor2;
-                waveCounter2 = (waveCounter2 + 1) & 7;
-            }
-            frequencyCounter3 -= 2;
-            if (frequencyCounter3 <= 0) {
-                frequencyCounter3 = 2048 - frequencyDivisor3;
-                wavePtr = (wavePtr + 1) & 31;
-            }
-            if (--frequencyCounter4 <= 0) {
-                frequencyCounter4 = (frequencyDivisor4 == 0 ? 8 : (frequencyDivisor4 << 4)) << frequencyShift4;
-                int xor = (lfsr4 & 1) ^ ((lfsr4 >> 1) & 1);
-                lfsr4 = (lfsr4 >> 1) | (xor << 14);
-                if (lowBitWidth4) {
-                    lfsr4 &= ~0x40;
-                    lfsr4 |= xor << 6;
-                }
+            int untilEvent = cyclesUntilSequencer();
+            int n = Math.min(cycles, untilEvent);
+            advanceChannels(n);
+            cycleCounter += n;
+            cycles -= n;
+            if (n == untilEvent) {
+                clockSequencer();
             }
-            if ((cycleCounter & 0xfff) == 0) {
-                if (length1 > 0 && useLength1)
-                    length1 --;
-                if (length2 > 0 && useLength2)
-                    length2 --;
-                if (length3 > 0 && useLength3)
-                    length3 --;
-                if (length4 > 0 && useLength4)
-                    length4 --;
-                if ((cycleCounter & 0x1fff) == 0x1000 && sweepFrequency1 != 0) {
-                    sweepCounter1++;
-                    if (sweepCounter1 == sweepFrequency1) {
-                        sweepCounter1 = 0;
-                        int deltaFreq = (sweepAscending1 ? -1 : 1) * (frequencyDivisor1 >> sweepShift1);
-                        int newFreq = frequencyDivisor1 + deltaFreq;
-                        if (newFreq > 0x7ff) {
-                            enable1 = false;
-                        } else {
-                            frequencyDivisor1 = newFreq;
-                        }
+        }
+    }
+
+    /**
+     *
+     * @return Number of cycles until the frame sequencer next clocks lengths, sweep or envelopes
+     */
+    private int cyclesUntilSequencer() {
+        int untilLength = 0x1000 - (cycleCounter & 0xfff);
+        int untilEnvelope = (0x3fff - (cycleCounter & 0x3fff)) & 0x3fff;
+        if (untilEnvelope == 0) {
+            untilEnvelope = 0x4000;
+        }
+        return Math.min(untilLength, untilEnvelope);
+    }
+
+    /**
+     * Advance the frequency timers and waveform positions of every channel
+     * @param cycles Number of cycles, with no frame sequencer event before the last
+     */
+    private void advanceChannels(int cycles) {
+        long timer = advanceTimer(frequencyCounter1, 2048 - frequencyDivisor1, 1, cycles);
+        frequencyCounter1 = (int) timer;
+        waveCounter1 = (int) ((waveCounter1 + (timer >> 32)) & 7);
+        timer = advanceTimer(frequencyCounter2, 2048 - frequencyDivisor2, 1, cycles);
+        frequencyCounter2 = (int) timer;
+        waveCounter2 = (int) ((waveCounter2 + (timer >> 32)) & 7);
+        timer = advanceTimer(frequencyCounter3, 2048 - frequencyDivisor3, 2, cycles);
+        frequencyCounter3 = (int) timer;
+        wavePtr = (int) ((wavePtr + (timer >> 32)) & 31);
+        timer = advanceTimer(frequencyCounter4, (frequencyDivisor4 == 0 ? 8 : (frequencyDivisor4 << 4)) << frequencyShift4, 1, cycles);
+        frequencyCounter4 = (int) timer;
+        lfsr4 = advanceLfsr(lfsr4, (int) (timer >> 32), lowBitWidth4);
+    }
+
+    /**
+     * Run a frequency timer that counts down by some rate each cycle and reloads with its period
+     * whenever it reaches 0 or below
+     * @param counter Current counter value
+     * @param period Value reloaded
+     * @param rate Amount counted down each cycle
+     * @param cycles Number of cycles to run
+     * @return Number of reloads in the upper 32 bits, new counter value in the lower 32 bits
+     */
+    static long advanceTimer(int counter, int period, int rate, int cycles) {
+        int first = Math.max(1, (counter + rate - 1) / rate); // Cycles until the first reload
+        if (cycles < first) {
+            return (counter - rate * cycles) & 0xffffffffL;
+        }
+        int between = (period + rate - 1) / rate;
+        int since = cycles - first;
+        long reloads = 1 + since / between;
+        return (reloads << 32) | ((period - rate * (since % between)) & 0xffffffffL);
+    }
+
+    // Every state of the 15 bit LFSR in the order it steps through them, and the position of each state
+    private static final short[] LFSR_SEQUENCE = new short[0x7fff];
+    private static final short[] LFSR_POSITION = new short[0x8000];
+
+    static {
+        int lfsr = 0x7fff;
+        for (int i = 0; i < LFSR_SEQUENCE.length; i++) {
+            LFSR_SEQUENCE[i] = (short) lfsr;
+            LFSR_POSITION[lfsr] = (short) i;
+            lfsr = stepLfsr(lfsr, false);
+        }
+    }
+
+    /**
+     * Step the noise channel's LFSR once
+     * @param lfsr LFSR value
+     * @param lowBitWidth True in 7 bit mode
+     * @return New LFSR value
+     */
+    static int stepLfsr(int lfsr, boolean lowBitWidth) {
+        int xor = (lfsr & 1) ^ ((lfsr >> 1) & 1);
+        lfsr = (lfsr >> 1) | (xor << 14);
+        if (lowBitWidth) {
+            lfsr &= ~0x40;
+            lfsr |= xor << 6;
+        }
+        return lfsr;
+    }
+
+    /**
+     * Step the noise channel's LFSR any number of times
+     * In 15 bit mode every nonzero state is on one cycle of 0x7fff states, so it is a table lookup.
+     * In 7 bit mode, once 8 steps have shifted out the old high bits the state repeats every 127 steps
+     * @param lfsr LFSR value
+     * @param steps Number of steps
+     * @param lowBitWidth True in 7 bit mode
+     * @return New LFSR value
+     */
+    static int advanceLfsr(int lfsr, int steps, boolean lowBitWidth) {
+        if (steps == 0 || (lfsr & 0x7fff) == 0) {
+            return lfsr;
+        }
+        if (!lowBitWidth) {
+            return LFSR_SEQUENCE[(LFSR_POSITION[lfsr & 0x7fff] + steps % 0x7fff) % 0x7fff];
+        }
+        if (steps > 8 + 127) {
+            steps = 8 + (steps - 8) % 127;
+        }
+        for (int i = 0; i < steps; i++) {
+            lfsr = stepLfsr(lfsr, true);
+        }
+        return lfsr;
+    }
+
+    /**
+     * Clock the frame sequencer, which happens when cycleCounter reaches a multiple of 0x1000 or
+     * is one short of a multiple of 0x4000
+     */
+    private void clockSequencer() {
+        if ((cycleCounter & 0xfff) == 0) {
+            if (length1 > 0 && useLength1)
+                length1 --;
+            if (length2 > 0 && useLength2)
+                length2 --;
+            if (length3 > 0 && useLength3)
+                length3 --;
+            if (length4 > 0 && useLength4)
+                length4 --;
+            if ((cycleCounter & 0x1fff) == 0x1000 && sweepFrequency1 != 0) {
+                sweepCounter1++;
+                if (sweepCounter1 == sweepFrequency1) {
+                    sweepCounter1 = 0;
+                    int deltaFreq = (sweepAscending1 ? -1 : 1) * (frequencyDivisor1 >> sweepShift1);
+                    int newFreq = frequencyDivisor1 + deltaFreq;
+                    if (newFreq > 0x7ff) {
+                        enable1 = false;
+                    } else {
+                        frequencyDivisor1 = newFreq;
                     }
                 }
             }
-            else if ((cycleCounter & 0x3fff) == 0x3fff) {
-                if (envelopeSweep1 != 0) {
-                    envelopeCounter1++;
-                    if (envelopeCounter1 == envelopeSweep1) {
-                        envelopeCounter1 = 0;
-                        envelope1 += (envelopeAscending1 ? 1 : -1);
-                        envelope1 = Math.min(0xf, Math.max(0, envelope1));
-                    }
+        }
+        else if ((cycleCounter & 0x3fff) == 0x3fff) {
+            if (envelopeSweep1 != 0) {
+                envelopeCounter1++;
+                if (envelopeCounter1 == envelopeSweep1) {
+                    envelopeCounter1 = 0;
+                    envelope1 += (envelopeAscending1 ? 1 : -1);
+                    envelope1 = Math.min(0xf, Math.max(0, envelope1));
                 }
-                if (envelopeSweep2 != 0) {
-                    envelopeCounter2++;
-                    if (envelopeCounter2 == envelopeSweep2) {
-                        envelopeCounter2 = 0;
-                        envelope2 += (envelopeAscending2 ? 1 : -1);
-                        envelope2 = Math.min(0xf, Math.max(0, envelope2));
-                    }
+            }
+            if (envelopeSweep2 != 0) {
+                envelopeCounter2++;
+                if (envelopeCounter2 == envelopeSweep2) {
+                    envelopeCounter2 = 0;
+                    envelope2 += (envelopeAscending2 ? 1 : -1);
+                    envelope2 = Math.min(0xf, Math.max(0, envelope2));
                 }
-                if (envelopeSweep4 != 0) {
-                    envelopeCounter4++;
-                    if (envelopeCounter4 == envelopeSweep4) {
-                        envelopeCounter4 = 0;
-                        envelope4 += (envelopeAscending4 ? 1 : -1);
-                        envelope4 = Math.min(0xf, Math.max(0, envelope4));
-                    }
+            }
+            if (envelopeSweep4 != 0) {
+                envelopeCounter4++;
+                if (envelopeCounter4 == envelopeSweep4) {
+                    envelopeCounter4 = 0;
+                    envelope4 += (envelopeAscending4 ? 1 : -1);
+                    envelope4 = Math.min(0xf, Math.max(0, envelope4));
                 }
             }
         }
@@ -525,12 +637,7 @@ public class SoundBoard {
     private int channel3() {
         if (!enable3 || !on3 || volume3 == 0)
             return 0;
-        int b = waveform[wavePtr >> 1];
-        if ((wavePtr & 1) == 0) {
-            b >>= 4;
-        }
-        b &= 0xf;
-        return b << (3 - volume3);
+        return waveNibble(wavePtr) << (3 - volume3);
     }
 
     /**
@@ -544,9 +651,19 @@ public class SoundBoard {
     }
 
     /**
-     * Write one sample to the speaker
+     *
+     * @param mask Bits of NR51 the channel is mixed in with
+     * @return True if the channel can be heard on either side
+     */
+    private boolean heard(int mask) {
+        return ((mapLeft & mask) != 0 && volumeLeft != 0) || ((mapRight & mask) != 0 && volumeRight != 0);
+    }
+
+    /**
+     * Mix the channels and pass any change in either side's level to its blip buffer,
+     * at the current position between samples
      */
-    private void writeSample() {
+    private void updateOutput() {
         int c1 = channel1();
         int c2 = channel2();
         int c3 = channel3();
@@ -570,35 +687,170 @@ public class SoundBoard {
             right += c4;
         left = (left * volumeLeft) >> 3;
         right = (right * volumeRight) >> 3;
-        leftBuffer[bufferPtr] = (byte)left;
-        rightBuffer[bufferPtr] = (byte)right;
-        bufferPtr++;
+        int phase = (int) (latentCycles * BlipBuffer.PHASES / ((long) timeDivisor << 20));
+        leftBlip.setLevel(bufferPtr, phase, left);
+        rightBlip.setLevel(bufferPtr, phase, right);
+    }
+
+    /**
+     * Frequency timers only change a channel's output when they reload, and mostly not even then
+     * @return Number of cycles until the output of some channel that can be heard may next change,
+     * other than by the frame sequencer or a register write
+     */
+    private int cyclesUntilOutputChange() {
+        long until = Integer.MAX_VALUE;
+        if (enable1 && length1 > 0 && envelope1 != 0 && heard(1)) {
+            until = Math.min(until, cyclesUntilReloads(frequencyCounter1, 2048 - frequencyDivisor1, 1,
+                    stepsUntilDutyChange(duty1, waveCounter1)));
+        }
+        if (enable2 && length2 > 0 && envelope2 != 0 && heard(2)) {
+            until = Math.min(until, cyclesUntilReloads(frequencyCounter2, 2048 - frequencyDivisor2, 1,
+                    stepsUntilDutyChange(duty2, waveCounter2)));
+        }
+        if (enable3 && on3 && volume3 != 0 && heard(3)) {
+            int current = waveNibble(wavePtr);
+            for (int steps = 1; steps < 32; steps++) {
+                if (waveNibble((wavePtr + steps) & 31) != current) {
+                    until = Math.min(until, cyclesUntilReloads(frequencyCounter3, 2048 - frequencyDivisor3, 2, steps));
+                    break;
+                }
+            }
+        }
+        if (enable4 && length4 > 0 && envelope4 != 0 && heard(4)) {
+            // Bit 0 after n steps is the current bit n, for the bits not yet replaced by feedback
+            int steps = 1;
+            while (steps < 7 && ((lfsr4 >> steps) & 1) == (lfsr4 & 1)) {
+                steps++;
+            }
+            until = Math.min(until, cyclesUntilReloads(frequencyCounter4,
+                    (frequencyDivisor4 == 0 ? 8 : (frequencyDivisor4 << 4)) << frequencyShift4, 1, steps));
+        }
+        return (int) until;
+    }
+
+    /**
+     *
+     * @param duty Duty pattern index
+     * @param waveCounter Current position in the pattern
+     * @return Number of steps until the square wave next changes level
+     */
+    private static int stepsUntilDutyChange(int duty, int waveCounter) {
+        int bit = (DUTY[duty] >>> waveCounter) & 1;
+        for (int steps = 1; steps < 8; steps++) {
+            if (((DUTY[duty] >>> ((waveCounter + steps) & 7)) & 1) != bit) {
+                return steps;
+            }
+        }
+        return 8;
+    }
+
+    /**
+     *
+     * @param ptr Position in the waveform
+     * @return 4-bit wave sample at that position
+     */
+    private int waveNibble(int ptr) {
+        int b = waveform[ptr >> 1];
+        if ((ptr & 1) == 0) {
+            b >>= 4;
+        }
+        return b & 0xf;
+    }
+
+    /**
+     * Counterpart to advanceTimer
+     * @param counter Current counter value
+     * @param period Value reloaded
+     * @param rate Amount counted down each cycle
+     * @param reloads Number of reloads, at least 1
+     * @return Number of cycles until the timer has reloaded that many times
+     */
+    private static long cyclesUntilReloads(int counter, int period, int rate, int reloads) {
+        return Math.max(1, (counter + rate - 1) / rate) + (long) (reloads - 1) * ((period + rate - 1) / rate);
+    }
+
+    /**
+     * Move the sample position on by some cycles, passing every buffer filled to the speaker
+     * @param cycles Number of m-cycles
+     */
+    private void advanceSamples(int cycles) {
+        latentCycles += (long) cycles * sampleRate;
+        long unit = (long) timeDivisor << 20;
+        long samples = latentCycles / unit;
+        latentCycles -= samples * unit;
+        while (samples > 0) {
+            int n = (int) Math.min(samples, bufferSize - bufferPtr);
+            bufferPtr += n;
+            samples -= n;
+            if (bufferPtr == bufferSize) {
+                bufferPtr = 0;
+                leftBlip.read(leftBuffer);
+                rightBlip.read(rightBuffer);
+                speaker.consume(leftBuffer, rightBuffer, bufferSize);
+                buffersOutput++;
+            }
+        }
     }
 
     /**
      * Called periodically from the machine to play sound
      * @param cycles Number of m-cycles that have passed
      * @param timeDivisor Speedup factor
-     * @param doubleSpeed If true, half as many samples are to be generated
      */
-    public void step(int cycles, int timeDivisor, boolean doubleSpeed) {
-        incrementTimer(cycles);
+    public void step(int cycles, int timeDivisor) {
         if (speaker == null || silent) {
+            incrementTimer(cycles);
             return;
         }
-        latentCycles += (long) cycles * format.sampleRate;
-        int numSamples = (int)(latentCycles >> 20) / timeDivisor;
-        if (doubleSpeed) {
-            numSamples >>= 1;
-        }
-        for (int i = 0; i < numSamples; i++) {
-            latentCycles -= (long) timeDivisor << 20;
-            writeSample();
-            if (bufferPtr == bufferSize) {
-                bufferPtr = 0;
-                speaker.consume(leftBuffer, rightBuffer, bufferSize);
+        this.timeDivisor = timeDivisor;
+        // Only stop where the output may change, or to hand over a buffer, the level is flat in between
+        while (cycles > 0) {
+            int untilEvent = cyclesUntilSequencer();
+            int n = Math.min(Math.min(cycles, untilEvent), cyclesUntilOutputChange());
+            n = (int) Math.min(n, cyclesUntilBufferFull(timeDivisor));
+            advanceChannels(n);
+            cycleCounter += n;
+            cycles -= n;
+            if (n == untilEvent) {
+                clockSequencer();
             }
+            advanceSamples(n);
+            updateOutput();
+        }
+    }
+
+    /**
+     * The APU only has to be brought up to date when its registers are accessed, or when it has
+     * a full buffer for the speaker
+     * @param timeDivisor Speedup factor
+     * @return Number of m-cycles, at least 1, until the current buffer would be full, or -1 if it is not outputting sound
+     */
+    long cyclesUntilBufferFull(int timeDivisor) {
+        if (speaker == null || silent) {
+            return -1;
+        }
+        long needed = (bufferSize - bufferPtr) * ((long) timeDivisor << 20) - latentCycles;
+        if (needed <= 0) {
+            return 1;
+        }
+        return (needed + sampleRate - 1) / sampleRate;
+    }
+
+    /**
+     * Dynamic rate control, so emulation can run at some other rate than real time without the speaker's
+     * queue running dry or overflowing. The sample rate is scaled to real time, then nudged by up to
+     * MAX_RATE_DEVIATION towards keeping the queue half full, too little to hear as a change in pitch
+     * @param speed How fast emulation is run relative to real time, e.g. a display's refresh rate over the native frame rate
+     * @param queued Number of samples currently queued by the speaker
+     * @param capacity Number of samples the speaker can queue
+     */
+    void controlRate(double speed, int queued, int capacity) {
+        if (speaker == null) {
+            return;
         }
+        double deviation = MAX_RATE_DEVIATION * (1 - 2.0 * queued / capacity);
+        deviation = Math.min(MAX_RATE_DEVIATION, Math.max(-MAX_RATE_DEVIATION, deviation));
+        sampleRate = (int) Math.round(format.sampleRate / speed * (1 + deviation));
     }
 
     /**
@@ -38,15 +38,50 @@ public class Timer {
      * @param cycles m-cycles to advance
      */
     public void increment(int cycles){
-        for (int i = 0; i < cycles; i++) {
+        while (cycles > 0) {
             if (pendingOverflow) {
                 tima = tma;
                 machine.interruptsFired |= 4;
                 pendingOverflow = false;
             }
-            divider = (divider + 1) & 0xffff;
-            updateEdge();
+            // Skip ahead to the next falling edge of the watched divider bit, if it comes in time
+            int step = cycles;
+            boolean edge = false;
+            if ((tac & 4) != 0) {
+                int period = 2 << DIV_BIT[tac & 3];
+                int untilEdge = period - (divider & (period - 1));
+                if (untilEdge <= cycles) {
+                    step = untilEdge;
+                    edge = true;
+                }
+            }
+            divider = (divider + step) & 0xffff;
+            cycles -= step;
+            if (edge) {
+                tima += 1;
+                if (tima > 0xff) {
+                    pendingOverflow = true;
+                    tima = 0;
+                }
+            }
+            delayed = (tac & 4) != 0 && (divider & (1 << DIV_BIT[tac & 3])) != 0;
+        }
+    }
+
+    /**
+     *
+     * @return Number of m-cycles until the timer interrupt is raised, or -1 if it is stopped
+     */
+    int cyclesUntilInterrupt() {
+        if (pendingOverflow) {
+            return 1;
+        }
+        if ((tac & 4) == 0) {
+            return -1;
         }
+        int period = 2 << DIV_BIT[tac & 3];
+        int untilEdge = period - (divider & (period - 1));
+        return untilEdge + (0xff - tima) * period + 1;
     }
 
     /**
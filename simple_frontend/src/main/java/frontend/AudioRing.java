@@ -0,0 +1,89 @@
+package frontend;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free ring of interleaved sample bytes from one producer thread to one consumer thread
+ * Each side only ever advances its own position, so neither waits on the other,
+ * a full ring just takes fewer bytes and an empty one gives fewer
+ */
+public class AudioRing {
+
+    private final byte[] data;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // Total bytes written, only advanced by the producer
+    private final AtomicLong tail = new AtomicLong(); // Total bytes read, only advanced by the consumer
+
+    /**
+     *
+     * @param capacity Size in bytes, a power of 2
+     */
+    public AudioRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of 2, not " + capacity);
+        }
+        data = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     *
+     * @return Size in bytes
+     */
+    public int capacity() {
+        return data.length;
+    }
+
+    /**
+     * Safe from either side, though it may be out of date by the time it returns
+     * @return Number of bytes written and not yet read
+     */
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    /**
+     *
+     * @return Number of bytes that can currently be written
+     */
+    public int free() {
+        return data.length - size();
+    }
+
+    /**
+     * Only for the producer, copy in as many bytes as fit
+     * @param src Source array
+     * @param offset Index in src to start at
+     * @param length Number of bytes wanted
+     * @return Number of bytes written
+     */
+    public int write(byte[] src, int offset, int length) {
+        long h = head.get();
+        int n = Math.min(length, data.length - (int) (h - tail.get()));
+        int start = (int) h & mask;
+        int first = Math.min(n, data.length - start);
+        System.arraycopy(src, offset, data, start, first);
+        System.arraycopy(src, offset + first, data, 0, n - first);
+        head.lazySet(h + n); // Publishes the bytes copied above
+        return n;
+    }
+
+    /**
+     * Only for the consumer, copy out as many bytes as are available
+     * @param dst Destination array
+     * @param offset Index in dst to start at
+     * @param length Number of bytes wanted
+     * @return Number of bytes read
+     */
+    public int read(byte[] dst, int offset, int length) {
+        long t = tail.get();
+        int n = Math.min(length, (int) (head.get() - t));
+        int start = (int) t & mask;
+        int first = Math.min(n, data.length - start);
+        System.arraycopy(data, start, dst, offset, first);
+        System.arraycopy(data, 0, dst, offset + first, n - first);
+        tail.lazySet(t + n); // Hands the space back only after copying out of it
+        return n;
+    }
+
+}
@@ -3,7 +3,13 @@ package frontend;
 import com.funguscow.gb.SoundBoard;
 
 import javax.sound.sampled.*;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Plays sound through the default audio device
+ * Samples are queued in a ring and written to the device on an audio thread, so consume never blocks
+ * and the emulator has to pace itself on the fill level instead, see awaitFillLevel
+ */
 public class PcSpeaker implements SoundBoard.Speaker {
 
     private static final int BUFFER_SIZE = 2048;
@@ -12,15 +18,24 @@ public class PcSpeaker implements SoundBoard.Speaker {
     private SourceDataLine line;
     private final int bufferSize;
     private final byte[] buffer;
-    private int bufferPtr;
+    private final AudioRing ring;
+    private Thread audioThread;
+    private volatile Thread waiter; // Emulation thread waiting in awaitFillLevel, if any
+    private volatile int underruns, overruns;
 
     // Can be constructor-supplied later
     private final int channels;
 
+    /**
+     *
+     * @param bufferSize Number of samples in the device's buffer, the ring holds twice as many
+     * @param channels 1 for mono, 2 for stereo
+     */
     public PcSpeaker(int bufferSize, int channels) {
         this.channels = channels;
         this.bufferSize = bufferSize;
         buffer = new byte[bufferSize * channels];
+        ring = new AudioRing(Integer.highestOneBit(bufferSize * channels * 2 - 1) << 1);
         AudioFormat audioFormat = new AudioFormat(AudioFormat.Encoding.PCM_UNSIGNED, 44100, 8, channels, channels, 44100, false);
         speakerFormat = new SoundBoard.SpeakerFormat(44100, true, true);
         Line.Info info = new DataLine.Info(SourceDataLine.class, audioFormat);
@@ -28,6 +43,9 @@ public class PcSpeaker implements SoundBoard.Speaker {
             line = (SourceDataLine) AudioSystem.getLine(info);
             line.open(audioFormat, bufferSize * channels);
             line.start();
+            audioThread = new Thread(this::play, "Audio");
+            audioThread.setDaemon(true);
+            audioThread.start();
         } catch (LineUnavailableException e) {
             e.printStackTrace();
         }
@@ -41,16 +59,102 @@ public class PcSpeaker implements SoundBoard.Speaker {
         return speakerFormat;
     }
 
+    /**
+     * Queue samples without blocking, dropping whatever does not fit
+     */
     public void consume(byte[] left, byte[] right, int numSamples) {
-        for (int i = 0; i < numSamples; i++) {
-            buffer[bufferPtr * channels] = left[i];
-            if (channels > 1)
-                buffer[bufferPtr * channels + 1] = right[i];
-            if(++bufferPtr == bufferSize) {
-                bufferPtr = 0;
-                line.write(buffer, 0, bufferSize * channels);
+        if (line == null) {
+            return;
+        }
+        int fits = Math.min(numSamples, ring.free() / channels);
+        if (fits < numSamples) {
+            overruns++;
+        }
+        int offset = 0;
+        while (offset < fits) {
+            int n = Math.min(fits - offset, bufferSize);
+            for (int i = 0; i < n; i++) {
+                buffer[i * channels] = left[offset + i];
+                if (channels > 1)
+                    buffer[i * channels + 1] = right[offset + i];
+            }
+            ring.write(buffer, 0, n * channels);
+            offset += n;
+        }
+    }
+
+    /**
+     * Runs on the audio thread, moving samples from the ring to the device a quarter buffer at a time
+     * If the ring runs dry the last sample is held, rather than letting the device stop
+     */
+    private void play() {
+        byte[] chunk = new byte[Math.max(1, bufferSize / 4) * channels];
+        byte[] last = new byte[channels];
+        while (true) {
+            int n = ring.read(chunk, 0, chunk.length);
+            if (n > 0) {
+                System.arraycopy(chunk, n - channels, last, 0, channels);
+            }
+            if (n < chunk.length) {
+                underruns++;
+                for (int i = n; i < chunk.length; i++) {
+                    chunk[i] = last[i % channels];
+                }
+            }
+            Thread w = waiter;
+            if (w != null) {
+                LockSupport.unpark(w);
             }
+            line.write(chunk, 0, chunk.length); // Blocks on the device, but only this thread
+        }
+    }
+
+    /**
+     * Block until the audio thread has played the queue down to some level,
+     * so the emulator can run at the speed sound is played without consume having to block
+     * @param samples Number of samples per channel that may still be queued
+     */
+    public void awaitFillLevel(int samples) {
+        if (line == null) {
+            return;
+        }
+        waiter = Thread.currentThread();
+        while (getFillLevel() > samples) {
+            LockSupport.parkNanos(this, 10_000_000L); // Woken by the audio thread, the timeout is just a fallback
         }
+        waiter = null;
+    }
+
+    /**
+     *
+     * @return Number of samples per channel queued and not yet passed to the device
+     */
+    public int getFillLevel() {
+        return ring.size() / channels;
+    }
+
+    /**
+     *
+     * @return Number of samples per channel the queue holds
+     */
+    public int getCapacity() {
+        return ring.capacity() / channels;
+    }
+
+    /**
+     *
+     * @return Number of times the device was given held samples because the queue ran dry
+     */
+    public int getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     *
+     * @return Number of times samples were dropped because the queue was full
+     */
+    public int getOverruns() {
+        return overruns;
     }
 
 }
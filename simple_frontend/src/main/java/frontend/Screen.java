@@ -9,14 +9,23 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.*;
+import java.util.concurrent.locks.LockSupport;
 
 public class Screen extends Canvas implements GPU.GameboyScreen, KeyListener {
 
+    private static final long NATIVE_FRAME_NANOS = Machine.FRAME_CYCLES * 1_000_000_000L / (1 << 20);
+    private static final double MAX_REFRESH_DEVIATION = 0.01; // Displays further from the native rate are not followed
+
     private Machine machine;
     private final BufferedImage image;
+    private final int[] pixels;
     private BufferStrategy strategy;
-    private boolean open = true;
+    // Frames go from the emulation thread to the display thread through here
+    private final TripleBuffer frames;
+    private Thread displayThread;
+    private volatile boolean open = true;
     private JFrame frame;
     private JPanel panel;
     public Keypad keypad;
@@ -31,6 +40,8 @@ public class Screen extends Canvas implements GPU.GameboyScreen, KeyListener {
         width = 160;
         height = 144;
         image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        frames = new TripleBuffer(pixels.length);
     }
 
     public boolean isOpen() {
@@ -49,6 +60,7 @@ public class Screen extends Canvas implements GPU.GameboyScreen, KeyListener {
             public void windowClosing(WindowEvent e) {
                 System.out.println("Closing");
                 open = false;
+                LockSupport.unpark(displayThread);
             }
 
             @Override
@@ -111,6 +123,23 @@ public class Screen extends Canvas implements GPU.GameboyScreen, KeyListener {
         addKeyListener(this);
         createBufferStrategy(2);
         strategy = getBufferStrategy();
+        displayThread = new Thread(this::display, "Display");
+        displayThread.setDaemon(true);
+        displayThread.start();
+    }
+
+    /**
+     * Display thread loop, presenting the newest frame whenever there is one
+     */
+    private void display() {
+        while (open) {
+            if (frames.acquire()) {
+                System.arraycopy(frames.front(), 0, pixels, 0, pixels.length);
+                present();
+            } else {
+                LockSupport.park();
+            }
+        }
     }
 
     private void updateSize(int w, int h) {
@@ -125,10 +154,29 @@ public class Screen extends Canvas implements GPU.GameboyScreen, KeyListener {
     }
 
     public void putPixel(int x, int y, int pixel){
-        image.setRGB(x, y, pixel);
+        frames.back()[y * 160 + x] = pixel;
     }
 
+    public void drawFrame(int[] frame){
+        System.arraycopy(frame, 0, frames.back(), 0, pixels.length);
+        update();
+    }
+
+    public void drawUnchangedFrame(int[] frame){
+        // The display thread is already showing this
+    }
+
+    /**
+     * Hand the finished frame to the display thread, never waiting for it to be shown
+     */
     public void update(){
+        frames.publish();
+        if (displayThread != null) {
+            LockSupport.unpark(displayThread);
+        }
+    }
+
+    private void present(){
         Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
         g.drawImage(image, 0, 0, width, height, this);
         g.dispose();
@@ -186,8 +234,9 @@ public class Screen extends Canvas implements GPU.GameboyScreen, KeyListener {
                 }
                 break;
             case KeyEvent.VK_SPACE:
+                machine.mute(true); // Before speeding up, so sound up to now is made at normal speed
                 machine.speedUp = 200;
-                machine.mute(true);
+                machine.setFrameSkip(GPU.FrameSkip.DEADLINE, 1);
                 break;
         }
     }
@@ -208,10 +257,31 @@ public class Screen extends Canvas implements GPU.GameboyScreen, KeyListener {
             case KeyEvent.VK_SPACE -> {
                 machine.speedUp = 1;
                 machine.mute(false);
+                machine.setFrameSkip(GPU.FrameSkip.NONE, 1);
             }
         }
     }
 
+    /**
+     *
+     * @return Nanoseconds between refreshes of the display, or the native frame time if the display's
+     * refresh rate is unknown or too far from the native one to run in step with
+     */
+    private static long frameNanos() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return NATIVE_FRAME_NANOS;
+        }
+        int refreshRate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+        if (refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN) {
+            return NATIVE_FRAME_NANOS;
+        }
+        long nanos = 1_000_000_000L / refreshRate;
+        if (Math.abs((double) nanos / NATIVE_FRAME_NANOS - 1) > MAX_REFRESH_DEVIATION) {
+            return NATIVE_FRAME_NANOS;
+        }
+        return nanos;
+    }
+
     public static void mainFunc() throws Exception {
 //        String ROMPath = "D:\\Games\\GBA\\gbtest\\mario_land.gb";
         String ROMPath = "D:\\Games\\GBA\\pokemon\\vanilla\\Pokemon red.gb";
@@ -238,8 +308,29 @@ public class Screen extends Canvas implements GPU.GameboyScreen, KeyListener {
         pal[1] = 0x0020b010;
         pal[2] = 0x00400000;
         pal[3] = 0x00000000;
+        // With dynamic rate control, run a frame per display refresh and stretch the sound to match,
+        // otherwise just keep pace with the sound being played
+        boolean dynamicRateControl = true;
+        long frameNanos = frameNanos();
+        double speed = (double) NATIVE_FRAME_NANOS / frameNanos;
+        long deadline = System.nanoTime();
         while(screen.isOpen()){
-            machine.cycle();
+            if (machine.runUntilVBlank().reason == Machine.StopReason.STOPPED) {
+                Thread.sleep(16); // Wait for a keypress to wake the CPU
+            }
+            if (!dynamicRateControl) {
+                speaker.awaitFillLevel(speaker.getCapacity() / 2);
+                continue;
+            }
+            machine.controlAudioRate(speed, speaker.getFillLevel(), speaker.getCapacity());
+            deadline += frameNanos / machine.speedUp;
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (wait < -frameNanos) { // Too far behind to catch up, so carry on from now
+                deadline = System.nanoTime();
+            }
         }
         try {
             machine.saveExternal();
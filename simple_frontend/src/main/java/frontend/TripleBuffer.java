@@ -0,0 +1,62 @@
+package frontend;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock free exchange of frames from one producer thread to one consumer thread
+ * The producer fills the back buffer and publishes it, swapping it with the middle buffer.
+ * The consumer takes the middle buffer as its front buffer only if a newer frame was published,
+ * so a slow consumer just skips frames and never holds up the producer
+ */
+public class TripleBuffer {
+
+    private static final int FRESH = 4; // Set in state when the middle buffer has not been taken yet
+
+    private final int[][] buffers;
+    private final AtomicInteger state = new AtomicInteger(1); // Index of the middle buffer, plus FRESH
+    private int back = 0, front = 2;
+
+    /**
+     *
+     * @param size Length of each frame
+     */
+    public TripleBuffer(int size) {
+        buffers = new int[3][size];
+    }
+
+    /**
+     * Only for the producer
+     * @return Buffer to fill with the next frame
+     */
+    public int[] back() {
+        return buffers[back];
+    }
+
+    /**
+     * Only for the producer, make the back buffer the newest frame
+     */
+    public void publish() {
+        back = state.getAndSet(back | FRESH) & 3;
+    }
+
+    /**
+     * Only for the consumer, take the newest frame if one was published since the last call
+     * @return True if front() now holds a new frame
+     */
+    public boolean acquire() {
+        if ((state.get() & FRESH) == 0) {
+            return false;
+        }
+        front = state.getAndSet(front) & 3;
+        return true;
+    }
+
+    /**
+     * Only for the consumer
+     * @return Most recently acquired frame
+     */
+    public int[] front() {
+        return buffers[front];
+    }
+
+}